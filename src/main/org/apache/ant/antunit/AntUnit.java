@@ -23,13 +23,26 @@ package org.apache.ant.antunit;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.tools.ant.AntClassLoader;
 import org.apache.tools.ant.BuildEvent;
@@ -40,8 +53,14 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.ProjectComponent;
 import org.apache.tools.ant.ProjectHelper;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
 import org.apache.tools.ant.taskdefs.Ant;
+import org.apache.tools.ant.types.Commandline;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.types.Mapper;
+import org.apache.tools.ant.types.LogLevel;
 import org.apache.tools.ant.types.Path;
 import org.apache.tools.ant.types.PropertySet;
 import org.apache.tools.ant.types.Resource;
@@ -49,6 +68,8 @@ import org.apache.tools.ant.types.ResourceCollection;
 import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.types.resources.Union;
 import org.apache.tools.ant.util.FileNameMapper;
+import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.LoaderUtils;
 import org.apache.tools.ant.util.regexp.RegexpMatcher;
 import org.apache.tools.ant.util.regexp.RegexpMatcherFactory;
 
@@ -61,6 +82,16 @@ import org.apache.tools.ant.util.regexp.RegexpMatcherFactory;
  * has failed; any other exception is considered an error (although
  * BuildException will be scanned recursively for nested
  * AssertionFailedExceptions).</p>
+ *
+ * <p>Build files can be run concurrently by setting the threads
+ * attribute, each build file still uses its own projects and
+ * listeners see the notifications of one build file at a time.  The
+ * test targets of a build file can be run concurrently by setting
+ * the parallelTargets attribute.</p>
+ *
+ * <p>Build files can be isolated from each other and from the VM
+ * running Ant by running them in forked VMs using the fork
+ * attribute.</p>
  */
 public class AntUnit extends Task {
 
@@ -75,6 +106,24 @@ public class AntUnit extends Task {
     public static final String ERROR_NO_TESTS =
         "You must specify build files to test.";
 
+    /**
+     * Message if an order has been specified without history.
+     */
+    public static final String ERROR_NO_HISTORY =
+        "You must specify a historyFile when setting the order.";
+
+    /**
+     * Message if the shard attributes are inconsistent.
+     */
+    public static final String ERROR_INVALID_SHARD =
+        "shardIndex must be between 0 and shardCount - 1.";
+
+    /**
+     * Message if maxFailures is negative.
+     */
+    public static final String ERROR_INVALID_MAX_FAILURES =
+        "maxFailures must not be negative.";
+
     /**
      * Message if non-File resources have been specified.
      */
@@ -86,26 +135,6 @@ public class AntUnit extends Task {
      */
     private Union buildFiles;
 
-
-    private AntUnitExecutionNotifier notifier = new AntUnitExecutionNotifier() {
-
-        public void fireEndTest(String targetName) {
-            AntUnit.this.fireEndTest(targetName);
-        }
-
-        public void fireError(String targetName, Throwable t) {
-            AntUnit.this.fireError(targetName, t);
-        }
-
-        public void fireFail(String targetName, AssertionFailedException ae) {
-            AntUnit.this.fireFail(targetName, ae);
-        }
-
-        public void fireStartTest(String targetName) {
-            AntUnit.this.fireStartTest(targetName);
-        }
-    };
-
     /**
      * The object responsible for the execution of the unit test.
      * scriptRunner is invoked to executes the targets and keep the
@@ -114,6 +143,14 @@ public class AntUnit extends Task {
      */
     private AntUnitScriptRunner scriptRunner;
 
+    /**
+     * The script runners of build files executed concurrently, one
+     * per worker thread.  Threads started by a test inherit the
+     * runner of their worker.
+     */
+    private final ThreadLocal<AntUnitScriptRunner> workerScriptRunner =
+        new InheritableThreadLocal<AntUnitScriptRunner>();
+
     /**
      * listeners.
      */
@@ -124,6 +161,12 @@ public class AntUnit extends Task {
      */
     private ArrayList<PropertySet> propertySets = new ArrayList<PropertySet>();
 
+    /**
+     * The properties of all property sets, only defined while the
+     * tests are running.
+     */
+    private Map<String, String> inheritedProperties;
+
     /**
      * Holds references to be inherited by the test project
      */
@@ -132,12 +175,142 @@ public class AntUnit extends Task {
     /**
      * has a failure occured?
      */
-    private int failures = 0;
+    private final AtomicInteger failures = new AtomicInteger();
 
     /**
      * has an error occured?
      */
-    private int errors = 0;
+    private final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * stop after the first failure or error?
+     */
+    private boolean haltOnFirstFailure = false;
+
+    /**
+     * number of failures and errors to stop after, 0 for no limit.
+     */
+    private int maxFailures = 0;
+
+    /**
+     * has the run been cancelled?
+     */
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    /**
+     * do recorders keep the log messages of the test projects?
+     */
+    private final AtomicBoolean recordMessages = new AtomicBoolean(true);
+
+    /**
+     * The script runners of the build files currently running.
+     */
+    private final Set<AntUnitScriptRunner> activeRunners =
+        new HashSet<AntUnitScriptRunner>();
+
+    /**
+     * number of build files to run concurrently.
+     */
+    private int threads = 1;
+
+    /**
+     * number of test targets of a build file to run concurrently.
+     */
+    private int parallelTargets = 1;
+
+    /**
+     * number of clean projects to create in advance.
+     */
+    private int prepareProjects = 0;
+
+    /**
+     * number of build files to read ahead.
+     */
+    private int readAhead = 0;
+
+    /**
+     * most detailed level of log messages captured for assertions.
+     */
+    private LogLevel captureLevel = LogLevel.DEBUG;
+
+    /**
+     * number of characters of captured log messages to keep in memory.
+     */
+    private int logMemoryLimit = 0;
+
+    /**
+     * parse each build file only once?
+     */
+    private boolean parseOnce = false;
+
+    /**
+     * read build files from the parse cache?
+     */
+    private boolean parseCache = true;
+
+    /**
+     * only list the test targets?
+     */
+    private boolean listOnly = false;
+
+    /**
+     * whether and how to run build files in forked VMs.
+     */
+    private ForkMode fork = new ForkMode(ForkMode.NONE);
+
+    /**
+     * command line of forked VMs.
+     */
+    private final CommandlineJava forkCommandline = new CommandlineJava();
+
+    /**
+     * the forked VMs, only defined while the tests are running in
+     * fork mode.
+     */
+    private ForkedWorkerPool workers;
+
+    /**
+     * file holding the outcome and duration of the last run.
+     */
+    private File historyFile;
+
+    /**
+     * order to run build files and test targets in.
+     */
+    private Order order = new Order(Order.NONE);
+
+    /**
+     * outcome and duration of the last run, only defined while the
+     * tests are running.
+     */
+    private TestHistory history;
+
+    /**
+     * timeout of a single test target in milliseconds.
+     */
+    private long timeout = 0;
+
+    /**
+     * the shard to run, 0 based, negative if not set.
+     */
+    private int shardIndex = -1;
+
+    /**
+     * number of shards, 0 if not set.
+     */
+    private int shardCount = 0;
+
+    /**
+     * whether to split test targets rather than build files into
+     * shards.
+     */
+    private boolean shardTargets = false;
+
+    /**
+     * the shard this task runs, only defined while the tests are
+     * running.
+     */
+    private TestShards shards;
 
     /**
      * stop testing if an error or failure occurs?
@@ -151,7 +324,7 @@ public class AntUnit extends Task {
 
     private Path classpath;
 
-    private AntClassLoader subprojectCoreLoader;
+    private SharedCoreLoader subprojectCoreLoader;
 
     /**
      * Add build files to run as tests.
@@ -217,6 +390,277 @@ public class AntUnit extends Task {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Set the number of build files to run concurrently.
+     * @param threads default <code>1</code>
+     * @since AntUnit 1.5
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Set the number of test targets of a build file to run
+     * concurrently.
+     * @param parallelTargets default <code>1</code>
+     * @since AntUnit 1.5
+     */
+    public void setParallelTargets(int parallelTargets) {
+        if (parallelTargets < 1) {
+            throw new BuildException("parallelTargets must be a positive number");
+        }
+        this.parallelTargets = parallelTargets;
+    }
+
+    /**
+     * Set the number of projects for the following test targets of a
+     * build file to create in the background while a test target is
+     * running.
+     *
+     * <p>Only used if the test targets of a build file are run one
+     * after the other.  The top-level tasks of the build file are
+     * executed while the preceding test target is still running, so
+     * they must not interfere with it.</p>
+     * @param prepareProjects default <code>0</code>
+     * @since AntUnit 1.5
+     */
+    public void setPrepareProjects(int prepareProjects) {
+        if (prepareProjects < 0) {
+            throw new BuildException("prepareProjects must not be negative");
+        }
+        this.prepareProjects = prepareProjects;
+    }
+
+    /**
+     * Set the most detailed level of log messages to capture for the
+     * log assertions of the test targets.
+     *
+     * <p>Messages of more detailed levels are dropped as soon as
+     * they are logged.  A build file can override the level by
+     * setting the <code>antunit.capturelevel</code> property.</p>
+     * @param captureLevel default <code>debug</code>
+     * @since AntUnit 1.5
+     */
+    public void setCaptureLevel(LogLevel captureLevel) {
+        this.captureLevel = captureLevel;
+    }
+
+    /**
+     * Set the number of characters of captured log messages to keep
+     * in memory for each test target.
+     *
+     * <p>Once the limit is exceeded the oldest messages are written
+     * to a temporary file, log assertions read them from there.</p>
+     * @param logMemoryLimit default <code>0</code> - no limit
+     * @since AntUnit 1.5
+     */
+    public void setLogMemoryLimit(int logMemoryLimit) {
+        if (logMemoryLimit < 0) {
+            throw new BuildException("logMemoryLimit must not be negative");
+        }
+        this.logMemoryLimit = logMemoryLimit;
+    }
+
+    /**
+     * Set the number of build files to read in the background while
+     * the tests of a build file are running.
+     *
+     * <p>Only used if the build files are processed one after the
+     * other inside of the current VM.  The following build files are
+     * parsed and their top-level tasks executed while the tests of
+     * the current build file are still running, so they must not
+     * interfere with them.  Errors are reported in the order of the
+     * build files.</p>
+     * @param readAhead default <code>0</code>
+     * @since AntUnit 1.5
+     */
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 0) {
+            throw new BuildException("readAhead must not be negative");
+        }
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Set whether each build file should only be parsed once.
+     *
+     * <p>If true, the projects of all but the first test of a build
+     * file are configured from a template recorded while the build
+     * file has been parsed for the first time.</p>
+     * @param parseOnce default <code>false</code>
+     * @since AntUnit 1.5
+     */
+    public void setParseOnce(boolean parseOnce) {
+        this.parseOnce = parseOnce;
+    }
+
+    /**
+     * Set whether build files should be read from the parse cache
+     * shared by all test projects of the VM.
+     * @param parseCache default <code>true</code>
+     * @since AntUnit 1.5
+     */
+    public void setParseCache(boolean parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    /**
+     * Set whether the test targets should only be listed rather than
+     * run.
+     *
+     * <p>If true, the build files are scanned for test targets
+     * without configuring any project and the names of the test
+     * targets are logged.  No listeners are notified.</p>
+     * @param listOnly default <code>false</code>
+     * @since AntUnit 1.5
+     */
+    public void setListOnly(boolean listOnly) {
+        this.listOnly = listOnly;
+    }
+
+    /**
+     * Set whether and how build files are run in forked VMs.
+     *
+     * <p>If "perFile" each build file is run in a VM of its own, if
+     * "perBatch" the forked VMs are reused for more than one build
+     * file.  There will be as many forked VMs running at the same
+     * time as there are threads.</p>
+     * @param fork default <code>false</code>
+     * @since AntUnit 1.5
+     */
+    public void setFork(ForkMode fork) {
+        this.fork = fork;
+    }
+
+    /**
+     * Set the command used to start forked VMs.
+     * @param jvm default <code>java</code>
+     * @since AntUnit 1.5
+     */
+    public void setJvm(String jvm) {
+        forkCommandline.setVm(jvm);
+    }
+
+    /**
+     * Add a nested jvmarg element, only used when forking.
+     * @return the argument to configure
+     * @since AntUnit 1.5
+     */
+    public Commandline.Argument createJvmarg() {
+        return forkCommandline.createVmArgument();
+    }
+
+    /**
+     * Set the file to keep the outcome and duration of each build
+     * file and test target of the last run in.
+     * @param historyFile the history file, it will be created if it
+     * doesn't exist
+     * @since AntUnit 1.5
+     */
+    public void setHistoryFile(File historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Set the order in which build files and test targets are run.
+     *
+     * <p>"failedFirst" runs the build files and targets that failed
+     * in the last run first, "longestFirst" runs those that took
+     * longest first.  Anything else is run in the order it has been
+     * found.  Requires a history file.</p>
+     * @param order default <code>none</code>
+     * @since AntUnit 1.5
+     */
+    public void setOrder(Order order) {
+        this.order = order;
+    }
+
+    /**
+     * Stop running tests after the first failure or error.
+     * @param haltOnFirstFailure default <code>false</code>
+     * @since AntUnit 1.5
+     */
+    public void setHaltOnFirstFailure(boolean haltOnFirstFailure) {
+        this.haltOnFirstFailure = haltOnFirstFailure;
+    }
+
+    /**
+     * Stop running tests once the given number of failures and errors
+     * has been reached.
+     *
+     * <p>No further build files or test targets are started, tests
+     * that are already running are completed including their
+     * tearDown and the suiteTearDown of their build file.</p>
+     * @param maxFailures the number of failures and errors, 0 for no
+     * limit
+     * @since AntUnit 1.5
+     */
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * Set the time a single test target may take before it is
+     * reported as error.
+     *
+     * <p>Build files can override it using the
+     * <code>antunit.timeout</code> property.</p>
+     * @param timeout timeout in milliseconds, default is no timeout
+     * @since AntUnit 1.5
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set the shard to run when the tests are split across several
+     * processes.
+     * @param shardIndex the 0 based index of the shard
+     * @since AntUnit 1.5
+     */
+    public void setShardIndex(int shardIndex) {
+        this.shardIndex = shardIndex;
+    }
+
+    /**
+     * Set the number of shards when the tests are split across
+     * several processes.
+     * @param shardCount the number of shards
+     * @since AntUnit 1.5
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Whether individual test targets rather than build files are
+     * split into shards.
+     * @param shardTargets default <code>false</code>
+     * @since AntUnit 1.5
+     */
+    public void setShardTargets(boolean shardTargets) {
+        this.shardTargets = shardTargets;
+    }
+
+    /**
+     * Run only the test targets of the given shard, used by forked
+     * VMs.
+     */
+    void setShards(TestShards shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Use the given history to order build files and test targets
+     * rather than the history file, used by forked VMs.
+     */
+    void setHistory(TestHistory history) {
+        this.history = history;
+    }
+
     /**
      * Create the nested classpath element.
      * @return {@link Path}
@@ -225,93 +669,622 @@ public class AntUnit extends Task {
         if (classpath != null) {
             throw new BuildException("Can only set classpath once");
         }
-        return classpath = new Path(getProject());
+        return classpath = new Path(getProject());
+    }
+
+    /**
+     * Set the test classpath as a reference to a {@link Path} defined elsewhere.
+     * @param classpathRefid
+     */
+    public void setClasspathRefid(String classpathRefid) {
+        if (classpathRefid == null || classpathRefid.trim().length() == 0) {
+            throw new BuildException("Null/empty/blank @classpathrefid specified");
+        }
+        createClasspath().setRefid(new org.apache.tools.ant.types.Reference(getProject(), classpathRefid));
+    }
+
+    /**
+     * Execute the tests.
+     */
+    public void execute() {
+        if (buildFiles == null) {
+            throw new BuildException(ERROR_NO_TESTS);
+        }
+        if (isOrdered() && historyFile == null && history == null) {
+            throw new BuildException(ERROR_NO_HISTORY);
+        }
+        if ((shardIndex >= 0 || shardCount > 0)
+            && (shardIndex < 0 || shardIndex >= shardCount)) {
+            throw new BuildException(ERROR_INVALID_SHARD);
+        }
+        if (maxFailures < 0) {
+            throw new BuildException(ERROR_INVALID_MAX_FAILURES);
+        }
+        if (!ForkMode.NONE.equals(fork.getValue()) && !listOnly) {
+            if (!referenceSets.isEmpty()) {
+                log("References can't be passed to forked VMs, ignoring them",
+                    Project.MSG_WARN);
+            }
+            workers = new ForkedWorkerPool(this, createWorkerCommandline(),
+                                           ForkMode.PER_BATCH.equals(fork.getValue()));
+        }
+        inheritedProperties = Collections.unmodifiableMap(getInheritedProperties());
+        for (ReferenceSet set : referenceSets) {
+            set.prepare();
+        }
+        AntUnitListener recorder = null;
+        if (historyFile != null) {
+            history = TestHistory.load(historyFile, getProject().getBaseDir());
+            recorder = history.createRecorder();
+            listeners.add(recorder);
+        }
+        if (shardCount > 0) {
+            shards = new TestShards(shardIndex, shardCount, shardTargets,
+                                    getProject().getBaseDir());
+        }
+        if (classpath != null && classpath.size() > 0) {
+            subprojectCoreLoader = SharedCoreLoader.forClasspath(classpath);
+        }
+        try {
+            doResourceCollection(buildFiles);
+        } finally {
+            if (subprojectCoreLoader != null) {
+                subprojectCoreLoader.release();
+                subprojectCoreLoader = null;
+            }
+            if (workers != null) {
+                workers.close();
+                workers = null;
+            }
+            inheritedProperties = null;
+            for (ReferenceSet set : referenceSets) {
+                set.release();
+            }
+            if (recorder != null) {
+                listeners.remove(recorder);
+                if (!listOnly) {
+                    history.save(historyFile);
+                }
+                history = null;
+            }
+            if (shardCount > 0) {
+                shards = null;
+            }
+        }
+        int failures = this.failures.get();
+        int errors = this.errors.get();
+        if (failures > 0 || errors > 0) {
+            if (errorProperty != null) {
+                getProject().setNewProperty(errorProperty, "true");
+            }
+            if (failOnError) {
+                throw new BuildException(ERROR_TESTS_FAILED
+                                         + failures + " failure"
+                                         + (failures != 1 ? "s" : "")
+                                         + " and "
+                                         + errors + " error"
+                                         + (errors != 1 ? "s" : ""));
+            }
+        }
+    }
+
+    /**
+     * Processes a ResourceCollection.
+     */
+    private void doResourceCollection(ResourceCollection rc) {
+        //should relax this restriction if/when Ant core allows non-files
+        if (!rc.isFilesystemOnly()) {
+            throw new BuildException(ERROR_NON_FILES);
+        }
+        @SuppressWarnings("unchecked")
+        Iterable<Resource> iterable = (Iterable<Resource>) rc;
+
+        List<File> files = new ArrayList<File>();
+        for (Resource resource : iterable) {
+            FileResource r = (FileResource) resource;
+            if (r.isExists()) {
+                files.add(r.getFile());
+            } else {
+                log("Skipping " + r + " since it doesn't exist", Project.MSG_VERBOSE);
+            }
+        }
+        if (shardCount > 0) {
+            files = selectShard(files);
+        }
+        if (isOrdered()) {
+            files = history.sortBuildFiles(files, isFailedFirst());
+        }
+        if (listOnly) {
+            for (File f : files) {
+                listFile(f);
+            }
+        } else if (threads > 1) {
+            doFilesConcurrently(files);
+        } else if (readAhead > 0 && workers == null) {
+            doFilesReadingAhead(files);
+        } else {
+            for (File f : files) {
+                if (cancelled.get()) {
+                    break;
+                }
+                doFile(f, listeners);
+            }
+        }
+    }
+
+    /**
+     * Selects the build files of this task's shard.
+     *
+     * <p>When splitting test targets the targets of all build files
+     * are collected without configuring the projects, build files
+     * without any target of this shard are skipped.  Build files
+     * that can not be scanned completely are always kept.</p>
+     */
+    private List<File> selectShard(List<File> files) {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        Map<File, List<String>> targets = new HashMap<File, List<String>>();
+        for (File f : files) {
+            if (!shards.isByTarget()) {
+                durations.put(shards.key(f),
+                              history == null ? null : history.getDuration(f, null));
+                continue;
+            }
+            BuildFileScanner scanner = new BuildFileScanner(f, getProject());
+            try {
+                List<String> testTargets = scanner.getTestTargets();
+                for (String t : testTargets) {
+                    durations.put(shards.key(f, t),
+                                  history == null ? null : history.getDuration(f, t));
+                }
+                if (scanner.isComplete()) {
+                    targets.put(f, testTargets);
+                }
+            } catch (BuildException e) {
+                log("Failed to scan " + f + ": " + e.getMessage(), Project.MSG_VERBOSE);
+            }
+        }
+        shards.balance(durations);
+        List<File> selected = new ArrayList<File>();
+        for (File f : files) {
+            if (!shards.isByTarget()) {
+                if (shards.contains(shards.key(f))) {
+                    selected.add(f);
+                }
+            } else if (!targets.containsKey(f)
+                       || !selectTargets(f, targets.get(f)).isEmpty()) {
+                selected.add(f);
+            }
+        }
+        log("Running " + selected.size() + " of " + files.size()
+            + " build files in shard " + shardIndex, Project.MSG_VERBOSE);
+        return selected;
+    }
+
+    /**
+     * Logs the test targets of a single build file.
+     * @param f the build file
+     */
+    private void listFile(File f) {
+        BuildFileScanner scanner = new BuildFileScanner(f, getProject());
+        List<String> testTargets = selectTargets(f, scanner.getTestTargets());
+        if (!scanner.isComplete()) {
+            log("Not all files imported by " + f + " could be resolved,"
+                + " some test targets may be missing", Project.MSG_WARN);
+        }
+        log("Build File: " + f);
+        for (String target : testTargets) {
+            log("Target: " + target);
+        }
+    }
+
+    /**
+     * Creates a recorder for the notifications of a build file that
+     * only keeps the log messages the listeners may see.
+     */
+    private RecordingAntUnitListener createRecorder() {
+        return new RecordingAntUnitListener(recordMessages);
+    }
+
+    /**
+     * Processes the build files on a pool of worker threads.
+     *
+     * <p>The notifications of each build file are recorded and
+     * replayed to the listeners in the order of the build files once
+     * a file has been completed.  An exception thrown while
+     * processing a build file keeps the build files that haven't
+     * been started yet from running, it is rethrown once the build
+     * files that have already been running are complete and all
+     * notifications have been replayed.</p>
+     */
+    private void doFilesConcurrently(List<File> files) {
+        ExecutorService pool =
+            Executors.newFixedThreadPool(threads, new WorkerThreadFactory("AntUnit worker"));
+        final AtomicBoolean stopped = new AtomicBoolean();
+        Throwable first = null;
+        try {
+            List<RecordingAntUnitListener> recorders =
+                new ArrayList<RecordingAntUnitListener>();
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final File f : files) {
+                final RecordingAntUnitListener recorder = createRecorder();
+                recorders.add(recorder);
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() {
+                        if (cancelled.get() || stopped.get()) {
+                            return null;
+                        }
+                        try {
+                            doFile(f, Collections.<AntUnitListener>singletonList(recorder));
+                        } catch (RuntimeException e) {
+                            stopped.set(true);
+                            throw e;
+                        } catch (Error e) {
+                            stopped.set(true);
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Throwable caught = null;
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    caught = e.getCause();
+                } catch (InterruptedException e) {
+                    pool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while running tests in "
+                                             + files.get(i), e);
+                }
+                recorders.get(i).replay(listeners);
+                if (caught != null && first == null) {
+                    first = caught;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (first instanceof BuildException) {
+            throw (BuildException) first;
+        } else if (first instanceof Error) {
+            throw (Error) first;
+        } else if (first != null) {
+            throw new BuildException(first);
+        }
+    }
+
+    /**
+     * Processes the build files one after the other while reading
+     * the following build files on a thread of its own.
+     *
+     * <p>The notifications of reading a build file are recorded and
+     * replayed to the listeners once the build file's tests are
+     * about to start.  An exception thrown while reading a build
+     * file is rethrown at that point, after all preceding build files
+     * have been completed.</p>
+     */
+    private void doFilesReadingAhead(List<File> files) {
+        ExecutorService pool =
+            Executors.newSingleThreadExecutor(new WorkerThreadFactory("AntUnit read-ahead",
+                                                                      true));
+        try {
+            LinkedList<ReadAhead> pending = new LinkedList<ReadAhead>();
+            Iterator<File> it = files.iterator();
+            while (!cancelled.get()) {
+                while (pending.size() <= readAhead && it.hasNext()) {
+                    pending.add(new ReadAhead(it.next(), pool));
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                pending.removeFirst().run();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Processes a single build file.
+     * @param f the build file
+     * @param targetListeners the listeners to notify
+     */
+    private void doFile(File f, List<AntUnitListener> targetListeners) {
+        if (workers != null) {
+            doFileForked(f, targetListeners);
+            return;
+        }
+        BuildFileProjectFactory prjFactory = new BuildFileProjectFactory(f, targetListeners);
+        runFile(f, createScriptRunner(prjFactory), prjFactory, targetListeners);
+    }
+
+    /**
+     * Creates the runner of a build file, parsing the build file.
+     * @param prjFactory creates the projects of the build file
+     */
+    private AntUnitScriptRunner createScriptRunner(BuildFileProjectFactory prjFactory) {
+        AntUnitScriptRunner runner = new AntUnitScriptRunner(prjFactory);
+        runner.setParallelTargets(parallelTargets);
+        runner.setPrepareProjects(prepareProjects);
+        runner.setCaptureLevel(captureLevel.getLevel());
+        runner.setLogMemoryLimit(logMemoryLimit);
+        runner.setTimeout(timeout);
+        return runner;
+    }
+
+    /**
+     * Runs the tests of a single build file.
+     * @param f the build file
+     * @param runner the runner of the build file
+     * @param prjFactory the factory used by the runner
+     * @param targetListeners the listeners to notify
+     */
+    private void runFile(File f, AntUnitScriptRunner runner,
+                         BuildFileProjectFactory prjFactory,
+                         List<AntUnitListener> targetListeners) {
+        log("Running tests in build file " + f, Project.MSG_DEBUG);
+        setScriptRunner(runner);
+        synchronized (activeRunners) {
+            activeRunners.add(runner);
+        }
+        if (cancelled.get()) {
+            runner.cancel();
+        }
+        try {
+            List<String> allTargets = runner.getTestTargets();
+            List<String> testTargets = selectTargets(f, allTargets);
+            if (testTargets.isEmpty() && !allTargets.isEmpty()) {
+                log("No test targets of " + f + " in this shard", Project.MSG_VERBOSE);
+                return;
+            }
+            runner.runSuite(testTargets, createNotifier(targetListeners));
+        } finally {
+            prjFactory.learnDefinitions();
+            synchronized (activeRunners) {
+                activeRunners.remove(runner);
+            }
+            setScriptRunner(null);
+        }
+    }
+
+    /**
+     * Stops running tests if the limit of failures and errors has
+     * been reached.
+     */
+    private void checkFailureLimit() {
+        int limit = getFailureLimit();
+        if (limit > 0 && failures.get() + errors.get() >= limit && !cancelled.get()) {
+            log("Reached the maximum number of failures and errors (" + limit
+                + "), not starting any further tests", Project.MSG_WARN);
+            cancel();
+        }
+    }
+
+    /**
+     * The number of failures and errors to stop after, 0 for no
+     * limit.
+     */
+    private int getFailureLimit() {
+        return haltOnFirstFailure ? 1 : maxFailures;
+    }
+
+    /**
+     * Doesn't start any further build files or test targets.
+     */
+    void cancel() {
+        if (!cancelled.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (activeRunners) {
+            for (AntUnitScriptRunner runner : activeRunners) {
+                runner.cancel();
+            }
+        }
+        ForkedWorkerPool w = workers;
+        if (w != null) {
+            w.cancel();
+        }
+    }
+
+    /**
+     * Whether build files and test targets are ordered by their
+     * history.
+     */
+    private boolean isOrdered() {
+        return !Order.NONE.equals(order.getValue());
+    }
+
+    private boolean isFailedFirst() {
+        return Order.FAILED_FIRST.equals(order.getValue());
+    }
+
+    /**
+     * Selects the test targets of a build file that belong to this
+     * task's shard and orders them by their history if requested.
+     */
+    private List<String> selectTargets(File f, List<String> testTargets) {
+        if (shards != null && shards.isByTarget()) {
+            List<String> selected = new ArrayList<String>();
+            for (String t : testTargets) {
+                if (shards.contains(shards.key(f, t))) {
+                    selected.add(t);
+                }
+            }
+            testTargets = selected;
+        }
+        return isOrdered() ? history.sortTargets(f, testTargets, isFailedFirst())
+            : testTargets;
     }
 
     /**
-     * Set the test classpath as a reference to a {@link Path} defined elsewhere.
-     * @param classpathRefid
+     * Processes a single build file in a forked VM.
+     * @param f the build file
+     * @param targetListeners the listeners to notify
      */
-    public void setClasspathRefid(String classpathRefid) {
-        if (classpathRefid == null || classpathRefid.trim().length() == 0) {
-            throw new BuildException("Null/empty/blank @classpathrefid specified");
+    private void doFileForked(File f, final List<AntUnitListener> targetListeners) {
+        log("Running tests in build file " + f + " in a forked VM", Project.MSG_DEBUG);
+        Map<String, String> userProperties = new HashMap<String, String>();
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> props = getProject().getUserProperties();
+            for (Map.Entry<String, Object> e : props.entrySet()) {
+                if (e.getValue() instanceof String) {
+                    userProperties.put(e.getKey(), (String) e.getValue());
+                }
+            }
         }
-        createClasspath().setRefid(new org.apache.tools.ant.types.Reference(getProject(), classpathRefid));
+        final AntUnitExecutionNotifier notifier = createNotifier(targetListeners);
+        TestHistory fileHistory = isOrdered() ? history.forBuildFile(f) : null;
+        TestShards fileShards = shards != null && shards.isByTarget()
+            ? shards.forBuildFile(f) : null;
+        // let the worker stop on its own rather than wait for cancel
+        int limit = getFailureLimit();
+        int remainingFailures = limit > 0
+            ? Math.max(1, limit - failures.get() - errors.get()) : 0;
+        workers.run(f, parallelTargets, prepareProjects, captureLevel.getValue(),
+                    logMemoryLimit, parseOnce, parseCache, timeout,
+                    remainingFailures,
+                    userProperties, inheritedProperties,
+                    fileHistory, order.getValue(), fileShards,
+                    new ForkedWorkerPool.Notifications() {
+                public void setCurrentTestProject(Project p) {
+                    for (AntUnitListener al : targetListeners) {
+                        al.setCurrentTestProject(p);
+                    }
+                }
+                public void startTestSuite(Project p, String buildFile) {
+                    for (AntUnitListener al : targetListeners) {
+                        al.startTestSuite(p, buildFile);
+                    }
+                }
+                public void endTestSuite(Project p, String buildFile) {
+                    for (AntUnitListener al : targetListeners) {
+                        al.endTestSuite(p, buildFile);
+                    }
+                }
+                public void startTest(String target) {
+                    notifier.fireStartTest(target);
+                }
+                public void endTest(String target) {
+                    notifier.fireEndTest(target);
+                }
+                public void addFailure(String target, AssertionFailedException ae) {
+                    notifier.fireFail(target, ae);
+                }
+                public void addError(String target, Throwable t) {
+                    notifier.fireError(target, t);
+                }
+            });
     }
 
     /**
-     * Execute the tests.
+     * Creates the command line starting a forked VM.
      */
-    public void execute() {
-        if (buildFiles == null) {
-            throw new BuildException(ERROR_NO_TESTS);
+    private String[] createWorkerCommandline() {
+        CommandlineJava cmd;
+        try {
+            cmd = (CommandlineJava) forkCommandline.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new BuildException(e);
         }
-        if (classpath != null && classpath.size() > 0) {
-            subprojectCoreLoader = getProject().createClassLoader(classpath);
+        cmd.setClassname(ForkedAntUnit.class.getName());
+        Path cp = cmd.createClasspath(getProject());
+        addClassSource(cp, AntUnit.class);
+        addClassSource(cp, Project.class);
+        if (classpath != null) {
+            cp.append(classpath);
         }
-        doResourceCollection(buildFiles);
-        if (failures > 0 || errors > 0) {
-            if (errorProperty != null) {
-                getProject().setNewProperty(errorProperty, "true");
-            }
-            if (failOnError) {
-                throw new BuildException(ERROR_TESTS_FAILED
-                                         + failures + " failure"
-                                         + (failures != 1 ? "s" : "")
-                                         + " and "
-                                         + errors + " error"
-                                         + (errors != 1 ? "s" : ""));
+        //antlibs and optional tasks available to the tests
+        for (ClassLoader l = AntUnit.class.getClassLoader(); l != null; l = l.getParent()) {
+            if (l instanceof AntClassLoader) {
+                cp.append(new Path(getProject(), ((AntClassLoader) l).getClasspath()));
+            } else if (l instanceof URLClassLoader) {
+                for (URL u : ((URLClassLoader) l).getURLs()) {
+                    if ("file".equals(u.getProtocol())) {
+                        cp.setLocation(new File(FileUtils.getFileUtils()
+                                                .fromURI(u.toString())));
+                    }
+                }
             }
         }
+        cp.append(Path.systemClasspath);
+        String antHome = getProject().getProperty(MagicNames.ANT_HOME);
+        if (antHome != null) {
+            Environment.Variable v = new Environment.Variable();
+            v.setKey(MagicNames.ANT_HOME);
+            v.setValue(antHome);
+            cmd.addSysproperty(v);
+        }
+        return cmd.getCommandline();
+    }
+
+    private static void addClassSource(Path p, Class<?> c) {
+        File f = LoaderUtils.getClassSource(c);
+        if (f != null) {
+            p.setLocation(f);
+        }
     }
 
     /**
-     * Processes a ResourceCollection.
+     * Creates a notifier that forwards to the given listeners.
+     * @param targetListeners the listeners to notify
      */
-    private void doResourceCollection(ResourceCollection rc) {
-        //should relax this restriction if/when Ant core allows non-files
-        if (!rc.isFilesystemOnly()) {
-            throw new BuildException(ERROR_NON_FILES);
-        }
-        @SuppressWarnings("unchecked")
-        Iterable<Resource> iterable = (Iterable<Resource>) rc;
+    private AntUnitExecutionNotifier createNotifier(final List<AntUnitListener> targetListeners) {
+        return new AntUnitExecutionNotifier() {
 
-        for (Resource resource : iterable) {
-            FileResource r = (FileResource) resource;
-            if (r.isExists()) {
-                doFile(r.getFile());
-            } else {
-                log("Skipping " + r + " since it doesn't exist", Project.MSG_VERBOSE);
+            public void fireEndTest(String targetName) {
+                AntUnit.this.fireEndTest(targetListeners, targetName);
             }
-        }
+
+            public void fireError(String targetName, Throwable t) {
+                AntUnit.this.fireError(targetListeners, targetName, t);
+            }
+
+            public void fireFail(String targetName, AssertionFailedException ae) {
+                AntUnit.this.fireFail(targetListeners, targetName, ae);
+            }
+
+            public void fireStartTest(String targetName) {
+                AntUnit.this.fireStartTest(targetListeners, targetName);
+            }
+        };
     }
 
     /**
-     * Processes a single build file.
+     * Sets the script runner of the build file processed by the
+     * current thread.
      */
-    private void doFile(final File f) {
-        log("Running tests in build file " + f, Project.MSG_DEBUG);
-        ProjectFactory prjFactory = new ProjectFactory() {
-            public Project createProject() {
-                return createProjectForFile(f);
+    private void setScriptRunner(AntUnitScriptRunner runner) {
+        if (threads > 1) {
+            if (runner == null) {
+                workerScriptRunner.remove();
+            } else {
+                workerScriptRunner.set(runner);
             }
-        };
-        try {
-            scriptRunner = new AntUnitScriptRunner(prjFactory);
-            List<String> testTargets = scriptRunner.getTestTargets();
-            scriptRunner.runSuite(testTargets, notifier);
-        } finally {
-            scriptRunner=null;
+        } else {
+            scriptRunner = runner;
         }
     }
 
+    /**
+     * The script runner of the build file processed by the current
+     * thread, if any.
+     */
+    private AntUnitScriptRunner getScriptRunner() {
+        AntUnitScriptRunner runner = workerScriptRunner.get();
+        return runner != null ? runner : scriptRunner;
+    }
+
     /**
      * Redirect output to new project instance.
      * @param outputToHandle the output to handle.
      */
     public void handleOutput(String outputToHandle) {
-        if (scriptRunner != null) {
-            scriptRunner.getCurrentProject().demuxOutput(outputToHandle, false);
+        AntUnitScriptRunner runner = getScriptRunner();
+        if (runner != null) {
+            runner.getCurrentProject().demuxOutput(outputToHandle, false);
         } else {
             super.handleOutput(outputToHandle);
         }
@@ -325,8 +1298,9 @@ public class AntUnit extends Task {
      */
     public int handleInput(byte[] buffer, int offset, int length)
         throws IOException {
-        if (scriptRunner != null) {
-            return scriptRunner.getCurrentProject().demuxInput(buffer, offset, length);
+        AntUnitScriptRunner runner = getScriptRunner();
+        if (runner != null) {
+            return runner.getCurrentProject().demuxInput(buffer, offset, length);
         }
         return super.handleInput(buffer, offset, length);
     }
@@ -336,8 +1310,9 @@ public class AntUnit extends Task {
      * @param toFlush the output String to flush.
      */
     public void handleFlush(String toFlush) {
-        if (scriptRunner != null) {
-            scriptRunner.getCurrentProject().demuxFlush(toFlush, false);
+        AntUnitScriptRunner runner = getScriptRunner();
+        if (runner != null) {
+            runner.getCurrentProject().demuxFlush(toFlush, false);
         } else {
             super.handleFlush(toFlush);
         }
@@ -348,8 +1323,9 @@ public class AntUnit extends Task {
      * @param errorOutputToHandle the error output to handle.
      */
     public void handleErrorOutput(String errorOutputToHandle) {
-        if (scriptRunner != null) {
-            scriptRunner.getCurrentProject().demuxOutput(errorOutputToHandle, true);
+        AntUnitScriptRunner runner = getScriptRunner();
+        if (runner != null) {
+            runner.getCurrentProject().demuxOutput(errorOutputToHandle, true);
         } else {
             super.handleErrorOutput(errorOutputToHandle);
         }
@@ -360,27 +1336,60 @@ public class AntUnit extends Task {
      * @param errorOutputToFlush the error output to flush.
      */
     public void handleErrorFlush(String errorOutputToFlush) {
-        if (scriptRunner != null) {
-            scriptRunner.getCurrentProject().demuxFlush(errorOutputToFlush, true);
+        AntUnitScriptRunner runner = getScriptRunner();
+        if (runner != null) {
+            runner.getCurrentProject().demuxFlush(errorOutputToFlush, true);
         } else {
             super.handleErrorFlush(errorOutputToFlush);
         }
     }
 
     /**
-     * Creates a new project instance and configures it.
+     * Creates a new project instance and prepares it for reading the
+     * build file.
      * @param f the File for which to create a Project.
+     * @param targetListeners the listeners to attach.
      */
-    private Project createProjectForFile(File f) {
+    private Project createProjectForFile(File f, List<AntUnitListener> targetListeners) {
         Project p = new Project();
         if (subprojectCoreLoader != null) {
-            p.setCoreLoader(subprojectCoreLoader);
+            subprojectCoreLoader.initProject(p);
         }
-        p.setDefaultInputStream(getProject().getDefaultInputStream());
-        p.initProperties();
-        p.setInputHandler(getProject().getInputHandler());
-        getProject().initSubProject(p);
         //pass through inherited properties
+        if (!inheritedProperties.isEmpty()) {
+            InheritedPropertyHelper.install(p, inheritedProperties);
+        }
+        //the parent project is shared by all worker threads
+        synchronized (this) {
+            p.setDefaultInputStream(getProject().getDefaultInputStream());
+            p.initProperties();
+            p.setInputHandler(getProject().getInputHandler());
+            getProject().initSubProject(p);
+
+            //pass through inherited references.  this code is borrowed
+            //with significant modification from taskdefs.Ant in Ant core.
+            //unfortunately the only way we can share the code directly
+            //would be to extend Ant (which might not be a bad idea?)
+            for (ReferenceSet set : referenceSets) {
+                set.copyReferencesInto(p);
+            }
+        }
+
+        p.setUserProperty(MagicNames.ANT_FILE, f.getAbsolutePath());
+        if (parseCache) {
+            CachingProjectHelper.enable(p);
+        }
+        attachListeners(f, p, targetListeners);
+
+        return p;
+    }
+
+    /**
+     * Evaluates the property sets whose properties are passed to the
+     * test projects.
+     */
+    private Map<String, String> getInheritedProperties() {
+        Map<String, String> inherited = new HashMap<String, String>();
         for (PropertySet set : propertySets) {
             @SuppressWarnings({ "unchecked", "rawtypes" })
             Map<String,Object> props = (Map) set.getProperties();
@@ -389,83 +1398,153 @@ public class AntUnit extends Task {
                     continue;
                 }
                 Object value = props.get(key);
-                if (value instanceof String && p.getProperty(key) == null) {
-                    p.setNewProperty(key, (String) value);
+                if (value instanceof String && !inherited.containsKey(key)) {
+                    inherited.put(key, (String) value);
                 }
             }
         }
-
-        //pass through inherited references.  this code is borrowed
-        //with significant modification from taskdefs.Ant in Ant core.
-        //unfortunately the only way we can share the code directly
-        //would be to extend Ant (which might not be a bad idea?)
-        for (ReferenceSet set : referenceSets) {
-            set.copyReferencesInto(p);
-        }
-
-        p.setUserProperty(MagicNames.ANT_FILE, f.getAbsolutePath());
-        attachListeners(f, p);
-
-        // read build file
-        ProjectHelper.configureProject(p, f);
-
-        return p;
+        return inherited;
     }
 
     /**
-     * Wraps all registered test listeners in BuildListeners and
+     * Wraps all given test listeners in BuildListeners and
      * attaches them to the new project instance.
      * @param buildFile a build file.
      * @param p the Project to attach to.
+     * @param targetListeners the listeners to attach.
      */
-    private void attachListeners(File buildFile, Project p) {
-        for (AntUnitListener al : listeners) {
+    private void attachListeners(File buildFile, Project p,
+                                 List<AntUnitListener> targetListeners) {
+        for (AntUnitListener al : targetListeners) {
             p.addBuildListener(new BuildToAntUnitListener(buildFile.getAbsolutePath(), al));
+            if (parallelTargets > 1 || prepareProjects > 0) {
+                setCurrentTestProjectSynchronized(al, p);
+            } else {
+                al.setCurrentTestProject(p);
+            }
+        }
+    }
+
+    /**
+     * Passes the project to the listener and makes sure any
+     * BuildListener the listener attaches to it only gets invoked by
+     * one thread at a time.
+     * @param al the listener
+     * @param p the Project of a test target that may run
+     * concurrently with other test targets.
+     */
+    private void setCurrentTestProjectSynchronized(AntUnitListener al, Project p) {
+        synchronized (al) {
+            @SuppressWarnings("unchecked")
+            List<BuildListener> before = p.getBuildListeners();
             al.setCurrentTestProject(p);
+            @SuppressWarnings("unchecked")
+            List<BuildListener> added = p.getBuildListeners();
+            added.removeAll(before);
+            for (BuildListener l : added) {
+                p.removeBuildListener(l);
+                p.addBuildListener(new SynchronizedBuildListener(al, l));
+            }
         }
     }
 
     /**
-     * invokes start on all registered test listeners.
+     * invokes start on the given test listeners.
+     * @param targetListeners the listeners to notify.
      * @param targetName the name of the target.
      */
-    private void fireStartTest(String targetName) {
-        for (AntUnitListener al : listeners) {
-            al.startTest(targetName);
+    private void fireStartTest(List<AntUnitListener> targetListeners, String targetName) {
+        for (AntUnitListener al : targetListeners) {
+            synchronized (al) {
+                al.startTest(targetName);
+            }
         }
     }
 
     /**
-     * invokes addFailure on all registered test listeners.
+     * invokes addFailure on the given test listeners.
+     * @param targetListeners the listeners to notify.
      * @param targetName the name of the failed target.
      * @param ae the associated AssertionFailedException.
      */
-    private void fireFail(String targetName, AssertionFailedException ae) {
-        failures++;
-        for (AntUnitListener al : listeners) {
-            al.addFailure(targetName, ae);
+    private void fireFail(List<AntUnitListener> targetListeners, String targetName,
+                          AssertionFailedException ae) {
+        failures.incrementAndGet();
+        for (AntUnitListener al : targetListeners) {
+            synchronized (al) {
+                al.addFailure(targetName, ae);
+            }
         }
+        checkFailureLimit();
     }
 
     /**
-     * invokes addError on all registered test listeners.
+     * invokes addError on the given test listeners.
+     * @param targetListeners the listeners to notify.
      * @param targetName the name of the failed target.
      * @param t the associated Throwable.
      */
-    private void fireError(String targetName, Throwable t) {
-        errors++;
-        for (AntUnitListener al : listeners) {
-            al.addError(targetName, t);
+    private void fireError(List<AntUnitListener> targetListeners, String targetName,
+                           Throwable t) {
+        errors.incrementAndGet();
+        for (AntUnitListener al : targetListeners) {
+            synchronized (al) {
+                al.addError(targetName, t);
+            }
         }
+        checkFailureLimit();
     }
 
     /**
-     * invokes endTest on all registered test listeners.
+     * invokes endTest on the given test listeners.
+     * @param targetListeners the listeners to notify.
      * @param targetName the name of the current target.
      */
-    private void fireEndTest(String targetName) {
-        for (AntUnitListener al : listeners) {
-            al.endTest(targetName);
+    private void fireEndTest(List<AntUnitListener> targetListeners, String targetName) {
+        for (AntUnitListener al : targetListeners) {
+            synchronized (al) {
+                al.endTest(targetName);
+            }
+        }
+    }
+
+    /**
+     * Whether and how build files are run in forked VMs.
+     * @since AntUnit 1.5
+     */
+    public static class ForkMode extends EnumeratedAttribute {
+        public static final String NONE = "false";
+        public static final String PER_FILE = "perFile";
+        public static final String PER_BATCH = "perBatch";
+
+        public ForkMode() {}
+
+        public ForkMode(String s) {
+            setValue(s);
+        }
+
+        public String[] getValues() {
+            return new String[] {NONE, PER_FILE, PER_BATCH};
+        }
+    }
+
+    /**
+     * The order to run build files and test targets in.
+     * @since AntUnit 1.5
+     */
+    public static class Order extends EnumeratedAttribute {
+        public static final String NONE = "none";
+        public static final String FAILED_FIRST = "failedFirst";
+        public static final String LONGEST_FIRST = "longestFirst";
+
+        public Order() {}
+
+        public Order(String s) {
+            setValue(s);
+        }
+
+        public String[] getValues() {
+            return new String[] {NONE, FAILED_FIRST, LONGEST_FIRST};
         }
     }
 
@@ -484,10 +1563,34 @@ public class AntUnit extends Task {
          */
         private Mapper mapper;
 
+        private boolean copyOnAccess = false;
+
+        /**
+         * The references to copy, computed once per run of the
+         * antunit task.
+         */
+        private List<ReferenceCopy> copies;
+
+        /**
+         * Reflection used to copy objects by class.
+         */
+        private final Map<Class<?>, CopyMethods> copyMethods =
+            new HashMap<Class<?>, CopyMethods>();
+
         public void addReference(Reference reference) {
             references.add(reference);
         }
 
+        /**
+         * Whether references should only be copied when the test
+         * project first uses them rather than when it is created.
+         * @param b boolean
+         * @since AntUnit 1.5
+         */
+        public void setCopyOnAccess(boolean b) {
+            copyOnAccess = b;
+        }
+
         /**
          * Create a nested mapper element.
          * @return {@link Mapper}
@@ -523,7 +1626,43 @@ public class AntUnit extends Task {
          * @param newProject the target project to copy references into
          */
         public void copyReferencesInto(Project newProject) {
+            List<ReferenceCopy> toCopy;
+            synchronized (this) {
+                toCopy = copies != null ? copies : findReferences();
+            }
+            for (ReferenceCopy c : toCopy) {
+                if (copyOnAccess) {
+                    newProject.addReference(c.newKey,
+                                            new CopyOnAccess(c, newProject));
+                } else {
+                    newProject.addReference(c.newKey, c.copyInto(newProject));
+                }
+            }
+        }
+
+        /**
+         * Finds the references to copy once so they can be used for
+         * all test projects until {@link #release} is invoked.
+         */
+        synchronized void prepare() {
+            copies = findReferences();
+        }
+
+        /**
+         * Forgets the references found by {@link #prepare}.
+         */
+        synchronized void release() {
+            copies = null;
+            copyMethods.clear();
+        }
+
+        /**
+         * Matches the references of the parent project and maps their
+         * IDs.
+         */
+        private synchronized List<ReferenceCopy> findReferences() {
             FileNameMapper mapper = this.mapper == null ? null : this.mapper.getImplementation();
+            List<ReferenceCopy> result = new ArrayList<ReferenceCopy>();
             Set<String> matches = new HashSet<String>();
             @SuppressWarnings("unchecked")
             Hashtable<String,Object> src = getProject().getReferences();
@@ -546,65 +1685,143 @@ public class AntUnit extends Task {
                         toRefid = refid;
                     }
 
-                    //clone the reference into the new project
-                    copyReference(refid, newProject, toRefid);
+                    Object orig = getProject().getReference(refid);
+                    if (orig == null) {
+                        log("No object referenced by " + refid + ". Can't copy to "
+                            + toRefid,
+                            Project.MSG_WARN);
+                        continue;
+                    }
+                    result.add(new ReferenceCopy(refid, toRefid, orig,
+                                                 getCopyMethods(orig.getClass())));
                 }
             }
+            return result;
+        }
+
+        private CopyMethods getCopyMethods(Class<?> c) {
+            CopyMethods m = copyMethods.get(c);
+            if (m == null) {
+                m = new CopyMethods(c);
+                copyMethods.put(c, m);
+            }
+            return m;
         }
 
         /**
-         * Try to clone and reconfigure the object referenced by
-         * oldkey in the parent project and add it to the new project
-         * with the key newkey.  This protects the parent project from
-         * modification by the child project.
-         *
-         * <p>If we cannot clone it, copy the referenced object itself and
-         * keep our fingers crossed.</p>
-         * @param oldKey the reference id in the current project.
-         * @param newKey the reference id in the new project.
+         * A reference of the parent project to be copied into test
+         * projects.
          */
-        private void copyReference(String oldKey, Project newProject,
-                                   String newKey) {
-            Object orig = getProject().getReference(oldKey);
-            if (orig == null) {
-                log("No object referenced by " + oldKey + ". Can't copy to "
-                    + newKey,
-                    Project.MSG_WARN);
-                return;
+        private class ReferenceCopy {
+            private final String oldKey;
+            private final String newKey;
+            private final Object orig;
+            private final CopyMethods methods;
+
+            ReferenceCopy(String oldKey, String newKey, Object orig,
+                          CopyMethods methods) {
+                this.oldKey = oldKey;
+                this.newKey = newKey;
+                this.orig = orig;
+                this.methods = methods;
             }
 
-            Class<?> c = orig.getClass();
-            Object copy = orig;
-            try {
-                Method cloneM = c.getMethod("clone");
-                if (cloneM != null) {
-                    copy = cloneM.invoke(orig);
-                    log("Adding clone of reference " + oldKey,
-                        Project.MSG_DEBUG);
+            /**
+             * Try to clone and reconfigure the object referenced by
+             * oldKey in the parent project.  This protects the parent
+             * project from modification by the child project.
+             *
+             * <p>If we cannot clone it, use the referenced object
+             * itself and keep our fingers crossed.</p>
+             * @param newProject the project to copy the object to
+             * @return the object to add to the new project
+             */
+            Object copyInto(Project newProject) {
+                Object copy = orig;
+                if (methods.cloneM != null) {
+                    try {
+                        // the original may be shared by several
+                        // worker threads
+                        synchronized (orig) {
+                            copy = methods.cloneM.invoke(orig);
+                        }
+                        log("Adding clone of reference " + oldKey,
+                            Project.MSG_DEBUG);
+                    } catch (Exception e) {
+                        // not Clonable
+                    }
                 }
-            } catch (Exception e) {
-                // not Clonable
-            }
 
-            if (copy instanceof ProjectComponent) {
-                ((ProjectComponent) copy).setProject(newProject);
-            } else {
-                try {
-                    Method setProjectM =
-                        c.getMethod("setProject", Project.class);
-                    if (setProjectM != null) {
-                        setProjectM.invoke(copy, newProject);
+                if (copy instanceof ProjectComponent) {
+                    ((ProjectComponent) copy).setProject(newProject);
+                } else if (methods.setProjectM != null) {
+                    try {
+                        methods.setProjectM.invoke(copy, newProject);
+                    } catch (Exception e2) {
+                        String msg = "Error setting new project instance for "
+                            + "reference with id " + oldKey;
+                        throw new BuildException(msg, e2, ReferenceSet.this.getLocation());
                     }
-                } catch (NoSuchMethodException e) {
-                    // ignore this if the class being referenced does not have
-                    // a set project method.
-                } catch (Exception e2) {
-                    String msg = "Error setting new project instance for "
-                        + "reference with id " + oldKey;
-                    throw new BuildException(msg, e2, getLocation());
                 }
+                return copy;
+            }
+        }
+    }
+
+    /**
+     * The clone and setProject methods of a class, if any.
+     */
+    private static class CopyMethods {
+        private final Method cloneM;
+        private final Method setProjectM;
+
+        CopyMethods(Class<?> c) {
+            cloneM = getMethod(c, "clone");
+            setProjectM = ProjectComponent.class.isAssignableFrom(c)
+                ? null : getMethod(c, "setProject", Project.class);
+        }
+
+        private static Method getMethod(Class<?> c, String name,
+                                        Class<?>... parameterTypes) {
+            try {
+                return c.getMethod(name, parameterTypes);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Placeholder for a reference that is copied when the test
+     * project resolves it for the first time.
+     *
+     * <p>Uses the same mechanism Ant uses for references to
+     * elements that haven't been configured, yet: the reference
+     * table of a project replaces UnknownElements by their real
+     * thing when they are looked up.</p>
+     */
+    private static class CopyOnAccess extends UnknownElement {
+        private final ReferenceSet.ReferenceCopy reference;
+        private final Project newProject;
+        private Object copy;
+        private boolean copied = false;
+
+        CopyOnAccess(ReferenceSet.ReferenceCopy reference, Project newProject) {
+            super(reference.newKey);
+            this.reference = reference;
+            this.newProject = newProject;
+            setProject(newProject);
+        }
+
+        public synchronized void maybeConfigure() {
+            if (!copied) {
+                copy = reference.copyInto(newProject);
+                copied = true;
             }
-            newProject.addReference(newKey, copy);
+        }
+
+        public synchronized Object getRealThing() {
+            return copy;
         }
     }
 
@@ -653,6 +1870,170 @@ public class AntUnit extends Task {
         }
     }
 
+    /**
+     * A build file whose runner is created in the background.
+     */
+    private class ReadAhead {
+        private final File buildFile;
+        private final RecordingAntUnitListener recorder = createRecorder();
+        private final BuildFileProjectFactory prjFactory;
+        private final Future<AntUnitScriptRunner> runner;
+
+        ReadAhead(File buildFile, ExecutorService pool) {
+            this.buildFile = buildFile;
+            prjFactory = new BuildFileProjectFactory(buildFile,
+                Collections.<AntUnitListener>singletonList(recorder));
+            runner = pool.submit(new Callable<AntUnitScriptRunner>() {
+                public AntUnitScriptRunner call() {
+                    return createScriptRunner(prjFactory);
+                }
+            });
+        }
+
+        /**
+         * Waits for the build file to be read and runs its tests.
+         */
+        void run() {
+            AntUnitScriptRunner r = null;
+            Throwable caught = null;
+            try {
+                r = runner.get();
+            } catch (ExecutionException e) {
+                caught = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted while reading " + buildFile, e);
+            }
+            recorder.forward(listeners);
+            if (caught instanceof BuildException) {
+                throw (BuildException) caught;
+            } else if (caught instanceof Error) {
+                throw (Error) caught;
+            } else if (caught != null) {
+                throw new BuildException(caught);
+            }
+            runFile(buildFile, r, prjFactory,
+                    Collections.<AntUnitListener>singletonList(recorder));
+        }
+    }
+
+    /**
+     * Creates the projects for the tests of a single build file.
+     */
+    private class BuildFileProjectFactory implements ProjectFactory {
+        private final File buildFile;
+        private final List<AntUnitListener> targetListeners;
+
+        /**
+         * The parsed build file, only used if parseOnce is true.
+         */
+        private ProjectTemplate template;
+
+        /**
+         * The project created most recently, its antlib definitions
+         * are shared once the next project gets created.
+         */
+        private Project lastProject;
+
+        BuildFileProjectFactory(File buildFile, List<AntUnitListener> targetListeners) {
+            this.buildFile = buildFile;
+            this.targetListeners = targetListeners;
+        }
+
+        public Project createProject() {
+            learnDefinitions();
+            Project p = createProjectForFile(buildFile, targetListeners);
+            if (!parseOnce) {
+                ProjectHelper.configureProject(p, buildFile);
+            } else {
+                ProjectTemplate t = getTemplate();
+                if (t != null) {
+                    t.configureProject(p);
+                } else {
+                    setTemplate(ProjectTemplate.configureProject(p, buildFile));
+                }
+            }
+            setLastProject(p);
+            return p;
+        }
+
+        /**
+         * Shares the antlib definitions used by the tests with the
+         * following build files.
+         */
+        void learnDefinitions() {
+            Project last = getLastProject();
+            if (subprojectCoreLoader != null && last != null) {
+                subprojectCoreLoader.learn(last);
+            }
+        }
+
+        private synchronized Project getLastProject() {
+            return lastProject;
+        }
+
+        private synchronized void setLastProject(Project p) {
+            lastProject = p;
+        }
+
+        private synchronized ProjectTemplate getTemplate() {
+            return template;
+        }
+
+        private synchronized void setTemplate(ProjectTemplate t) {
+            template = t;
+        }
+    }
+
+    /**
+     * Serializes the invocations of a BuildListener.
+     */
+    private static class SynchronizedBuildListener implements BuildListener {
+        private final Object lock;
+        private final BuildListener l;
+
+        SynchronizedBuildListener(Object lock, BuildListener l) {
+            this.lock = lock;
+            this.l = l;
+        }
+
+        public void buildStarted(BuildEvent event) {
+            synchronized (lock) {
+                l.buildStarted(event);
+            }
+        }
+        public void buildFinished(BuildEvent event) {
+            synchronized (lock) {
+                l.buildFinished(event);
+            }
+        }
+        public void targetStarted(BuildEvent event) {
+            synchronized (lock) {
+                l.targetStarted(event);
+            }
+        }
+        public void targetFinished(BuildEvent event) {
+            synchronized (lock) {
+                l.targetFinished(event);
+            }
+        }
+        public void taskStarted(BuildEvent event) {
+            synchronized (lock) {
+                l.taskStarted(event);
+            }
+        }
+        public void taskFinished(BuildEvent event) {
+            synchronized (lock) {
+                l.taskFinished(event);
+            }
+        }
+        public void messageLogged(BuildEvent event) {
+            synchronized (lock) {
+                l.messageLogged(event);
+            }
+        }
+    }
+
     /**
      * Adapts AntUnitListener to BuildListener.
      */
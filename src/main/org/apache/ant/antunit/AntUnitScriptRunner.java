@@ -20,14 +20,23 @@
 
 package org.apache.ant.antunit;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Target;
+import org.apache.tools.ant.types.LogLevel;
 
 /**
  * Run antunit tests suites.  This AntUnitScriptRunner is responsible for the
@@ -65,6 +74,27 @@ public class AntUnitScriptRunner {
      */
     private static final String SUITETEARDOWN = "suiteTearDown";
 
+    /**
+     * Name of the property a build file can use to override the
+     * timeout of its test targets.
+     * @since AntUnit 1.5
+     */
+    public static final String TIMEOUT_PROPERTY = "antunit.timeout";
+
+    /**
+     * Time in milliseconds a test target that has timed out gets to
+     * react to the interrupt.
+     */
+    private static final long INTERRUPT_GRACE_PERIOD = 1000;
+
+    /**
+     * Name of the property a build file can use to override the
+     * most detailed level of log messages captured for its test
+     * targets.
+     * @since AntUnit 1.5
+     */
+    public static final String CAPTURE_LEVEL_PROPERTY = "antunit.capturelevel";
+
     /**
      * Object used to create projects in order to support test isolation.
      */
@@ -112,6 +142,61 @@ public class AntUnitScriptRunner {
      */
     private boolean projectIsDirty;
 
+    /**
+     * The projects of test targets running concurrently, one per
+     * worker thread.  Threads started by a test inherit the project
+     * of their worker.
+     */
+    private final ThreadLocal<Project> workerProject = new InheritableThreadLocal<Project>();
+
+    /**
+     * Number of test targets to run concurrently.
+     */
+    private int parallelTargets = 1;
+
+    /**
+     * Timeout of a test target in milliseconds, 0 if there is none.
+     */
+    private long timeout = 0;
+
+    /**
+     * Timeout set by the build file, null if there is none.
+     */
+    private final Long fileTimeout;
+
+    /**
+     * Most detailed level of log messages to capture.
+     */
+    private int captureLevel = Project.MSG_DEBUG;
+
+    /**
+     * Capture level set by the build file, null if there is none.
+     */
+    private final Integer fileCaptureLevel;
+
+    /**
+     * Number of characters of captured log messages to keep in
+     * memory, 0 for no limit.
+     */
+    private int logMemoryLimit = 0;
+
+    /**
+     * Whether test targets that have not been started yet should be
+     * skipped.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Number of clean projects to create in advance.
+     */
+    private int prepareProjects = 0;
+
+    /**
+     * Creates clean projects in advance while a suite is running,
+     * null if projects are created on demand.
+     */
+    private ProjectPreparer preparer;
+
 
     /**
      * Create a new AntScriptRunner on the given environment.
@@ -128,14 +213,42 @@ public class AntUnitScriptRunner {
         hasTearDown = targets.containsKey(TEARDOWN);
         hasSuiteSetUp = targets.containsKey(SUITESETUP);
         hasSuiteTearDown = targets.containsKey(SUITETEARDOWN);
+        String t = newProject.getProperty(TIMEOUT_PROPERTY);
+        try {
+            fileTimeout = t == null ? null : Long.valueOf(t.trim());
+        } catch (NumberFormatException e) {
+            throw new BuildException("Invalid " + TIMEOUT_PROPERTY + " " + t);
+        }
+        String l = newProject.getProperty(CAPTURE_LEVEL_PROPERTY);
+        if (l == null) {
+            fileCaptureLevel = null;
+        } else {
+            LogLevel level = new LogLevel();
+            try {
+                level.setValue(l.trim());
+            } catch (BuildException e) {
+                throw new BuildException("Invalid " + CAPTURE_LEVEL_PROPERTY + " " + l);
+            }
+            fileCaptureLevel = Integer.valueOf(level.getLevel());
+        }
 
         for (String name : targets.keySet()) {
-            if (name.startsWith(TEST) && !TEST.equals(name)) {
+            if (isTestTarget(name)) {
                 getTestTargets().add(name);
             }
         }
     }
 
+    /**
+     * Whether a target of the given name is a test target.
+     * @param name the name of the target
+     * @return true if the name starts with "test" but isn't "test"
+     * @since AntUnit 1.5
+     */
+    public static boolean isTestTarget(String name) {
+        return name.startsWith(TEST) && !TEST.equals(name);
+    }
+
     /**
      * Get the project currently in use.  The caller is not allowed to invoke a target or
      * do anything that would break the isolation of the test targets.
@@ -144,6 +257,10 @@ public class AntUnitScriptRunner {
      */
     public final Project getCurrentProject() throws BuildException {
     	//Method is final because it is called from the constructor
+        Project p = workerProject.get();
+        if (p != null) {
+            return p;
+        }
         if (project == null) {
             project = prjFactory.createProject();
             projectIsDirty = false;
@@ -156,7 +273,7 @@ public class AntUnitScriptRunner {
      */
     private Project getCleanProject() {
         if (project == null || projectIsDirty) {
-            project = prjFactory.createProject();
+            project = preparer != null ? preparer.next() : prjFactory.createProject();
         }
         //we already set isDirty to true in order to make sure we didn't reuse
         //this project next time getCleanProject is called.
@@ -164,6 +281,108 @@ public class AntUnitScriptRunner {
         return project;
     }
 
+    /**
+     * Set the number of test targets to run concurrently.
+     *
+     * <p>When bigger than 1 the test targets are run on a pool of
+     * worker threads between suiteSetUp and suiteTearDown, each in a
+     * project of its own.  The notifications of each test target are
+     * passed to the notifier in the order of the test targets once
+     * the target has been completed.  The ProjectFactory must be able
+     * to create projects from several threads at the same time.</p>
+     * @param parallelTargets number of targets to run at the same time
+     * @since AntUnit 1.5
+     */
+    public void setParallelTargets(int parallelTargets) {
+        this.parallelTargets = parallelTargets;
+    }
+
+    /**
+     * Set the time a test target - including its setUp - may take.
+     *
+     * <p>A test target that takes longer is interrupted, an error
+     * with a dump of all threads is reported and the tearDown target
+     * is executed.  The test target keeps running in the background
+     * if it doesn't react to the interrupt within a second, as its
+     * project can't be used by two threads at the same time the
+     * tearDown target is then executed in a new project that doesn't
+     * share any state - properties set by setUp for example - with
+     * the test target and its log is kept until the test target
+     * completes.  A build file can
+     * override the timeout with the {@link #TIMEOUT_PROPERTY
+     * antunit.timeout} property.</p>
+     * @param timeout the timeout in milliseconds, 0 or less for none
+     * @since AntUnit 1.5
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set the most detailed level of log messages captured for the
+     * assertions of a test target.
+     *
+     * <p>Messages of more detailed levels are dropped as soon as
+     * they are logged, assertions looking for them won't find them.
+     * A build file can override the level with the {@link
+     * #CAPTURE_LEVEL_PROPERTY antunit.capturelevel} property.</p>
+     * @param captureLevel one of the <code>Project.MSG_*</code>
+     * constants, defaults to <code>MSG_DEBUG</code>
+     * @since AntUnit 1.5
+     */
+    public void setCaptureLevel(int captureLevel) {
+        this.captureLevel = captureLevel;
+    }
+
+    /**
+     * Set the number of characters of captured log messages to keep
+     * in memory for a test target.
+     *
+     * <p>Once the limit is exceeded the oldest messages are written
+     * to a temporary file that is deleted after the tearDown target
+     * has completed.  Log assertions read them from there.</p>
+     * @param logMemoryLimit the limit, 0 for none
+     * @since AntUnit 1.5
+     */
+    public void setLogMemoryLimit(int logMemoryLimit) {
+        this.logMemoryLimit = logMemoryLimit;
+    }
+
+    /**
+     * Set the number of clean projects to create in advance.
+     *
+     * <p>When bigger than 0 and the test targets are run one after
+     * the other, a background thread creates the projects for the
+     * following test targets while a test target is running, keeping
+     * at most the given number of projects ready.  Projects that
+     * haven't been used when the suite ends are discarded.  The
+     * ProjectFactory must be able to create projects from a thread
+     * other than the one running the suite and the top-level tasks
+     * of the build file must not interfere with test targets that
+     * run at the same time.  Output the top-level tasks write to
+     * System.out while a project is prepared isn't attributed to any
+     * test.</p>
+     * @param prepareProjects number of projects to keep ready, 0 to
+     * create projects when they are needed
+     * @since AntUnit 1.5
+     */
+    public void setPrepareProjects(int prepareProjects) {
+        this.prepareProjects = prepareProjects;
+    }
+
+    /**
+     * Skips all test targets of the suite that have not been started
+     * yet.
+     *
+     * <p>Test targets that are running keep running and are followed
+     * by their tearDown target, the suiteTearDown target is executed
+     * as usual.  May be called from any thread.</p>
+     * @since AntUnit 1.5
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
     /**
      * @return List&lt;String&gt; List of test targets of the script file
      */
@@ -221,17 +440,31 @@ public class AntUnitScriptRunner {
         if (!isSuiteStarted) {
             throw new AssertionError();
         }
-        Project newProject = getCleanProject();
+        runTarget(getCleanProject(), name, notifier);
+    }
+
+    /**
+     * Run the specific test target in the given project.
+     * @param newProject a project that has not been used before.
+     * @param name name of the test target to execute.
+     * @param notifier will receive execution notifications.
+     */
+    private void runTarget(Project newProject, String name,
+                           AntUnitExecutionNotifier notifier) {
         Vector<String> v = new Vector<String>();
         if (hasSetUp) {
             v.add(SETUP);
         }
         v.add(name);
         // create and register a logcapturer on the newProject
-        new LogCapturer(newProject);
+        LogCapturer capturer =
+            new LogCapturer(newProject, fileCaptureLevel != null
+                            ? fileCaptureLevel.intValue() : captureLevel,
+                            logMemoryLimit);
+        TestThread testThread = new TestThread(capturer);
         try {
             notifier.fireStartTest(name);
-            newProject.executeTargets(v);
+            executeTargets(newProject, v, name, testThread);
         } catch (BuildException e) {
             fireFailOrError(name, e, notifier);
         } finally {
@@ -242,13 +475,75 @@ public class AntUnitScriptRunner {
             // is reached.
             notifier.fireEndTest(name);
             // clean up
+            boolean abandoned = testThread.isAbandoned();
             if (hasTearDown) {
                 try {
-                    newProject.executeTarget(TEARDOWN);
+                    // the abandoned test target may still be using
+                    // its project
+                    (abandoned ? prjFactory.createProject() : newProject)
+                        .executeTarget(TEARDOWN);
                 } catch (final BuildException e) {
                     fireFailOrError(name, e, notifier);
                 }
             }
+            if (!abandoned) {
+                capturer.discard();
+            }
+        }
+    }
+
+    /**
+     * Executes the targets, in a thread of its own if there is a
+     * timeout.
+     * @throws TestTimeoutException if the targets don't complete in
+     * time
+     */
+    private void executeTargets(final Project p, final Vector<String> targets,
+                                String name, final TestThread state) {
+        long t = fileTimeout != null ? fileTimeout.longValue() : timeout;
+        if (t <= 0) {
+            p.executeTargets(targets);
+            return;
+        }
+        final Throwable[] caught = new Throwable[1];
+        Thread testThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        p.executeTargets(targets);
+                    } catch (Throwable e) {
+                        caught[0] = e;
+                    } finally {
+                        state.finished();
+                    }
+                }
+            }, "AntUnit test " + name);
+        testThread.setDaemon(true);
+        testThread.start();
+        try {
+            testThread.join(t);
+        } catch (InterruptedException e) {
+            testThread.interrupt();
+            state.abandon();
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while running " + name, e);
+        }
+        if (testThread.isAlive()) {
+            TestTimeoutException e = new TestTimeoutException(name, t, testThread);
+            testThread.interrupt();
+            try {
+                testThread.join(INTERRUPT_GRACE_PERIOD);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            state.abandon();
+            throw e;
+        }
+        if (caught[0] instanceof RuntimeException) {
+            throw (RuntimeException) caught[0];
+        } else if (caught[0] instanceof Error) {
+            throw (Error) caught[0];
+        } else if (caught[0] != null) {
+            throw new BuildException(caught[0]);
         }
     }
 
@@ -303,17 +598,296 @@ public class AntUnitScriptRunner {
      */
     public void runSuite(List<String> suiteTargets, AntUnitExecutionNotifier notifier) {
         Throwable caught = null;
+        startPreparer(suiteTargets);
         try {
             if (!startSuite(notifier)) {
                 return;
             }
-            for (String name : suiteTargets) {
-                runTarget(name, notifier);
+            if (parallelTargets > 1 && suiteTargets.size() > 1) {
+                runTargetsConcurrently(suiteTargets, notifier);
+            } else {
+                for (String name : suiteTargets) {
+                    if (cancelled) {
+                        break;
+                    }
+                    runTarget(name, notifier);
+                }
             }
         } catch (Throwable e) {
             caught = e;
         } finally {
-            endSuite(caught, notifier);
+            try {
+                endSuite(caught, notifier);
+            } finally {
+                if (preparer != null) {
+                    preparer.stop();
+                    preparer = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts creating the projects the suite is going to need if
+     * projects should be prepared in advance and test targets are
+     * run one after the other.
+     */
+    private void startPreparer(List<String> suiteTargets) {
+        if (prepareProjects <= 0
+            || (parallelTargets > 1 && suiteTargets.size() > 1)) {
+            return;
+        }
+        int needed = suiteTargets.size() + (hasSuiteSetUp ? 1 : 0)
+            + (hasSuiteTearDown ? 1 : 0);
+        if (project != null && !projectIsDirty) {
+            // will be used by the first target
+            needed--;
+        }
+        if (needed > 0) {
+            preparer = new ProjectPreparer(needed);
+        }
+    }
+
+    /**
+     * Tracks whether the thread running a test target with a timeout
+     * has been given up on and makes the last one of the thread and
+     * the runner to finish discard the captured log.
+     */
+    private static class TestThread {
+        private final LogCapturer capturer;
+        private boolean finished = false;
+        private boolean abandoned = false;
+
+        TestThread(LogCapturer capturer) {
+            this.capturer = capturer;
+        }
+
+        /**
+         * Invoked by the test thread when the targets have completed.
+         */
+        synchronized void finished() {
+            finished = true;
+            if (abandoned) {
+                capturer.discard();
+            }
+        }
+
+        /**
+         * Gives up on the test thread unless it has completed.
+         */
+        synchronized void abandon() {
+            abandoned = !finished;
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+    }
+
+    /**
+     * Creates a fixed number of projects on a thread of its own,
+     * keeping at most prepareProjects of them ready.
+     */
+    private class ProjectPreparer implements Runnable {
+        /**
+         * Holds projects or the exceptions thrown while creating them.
+         */
+        private final BlockingQueue<Object> ready =
+            new ArrayBlockingQueue<Object>(prepareProjects);
+        private final int count;
+        private final Thread thread;
+        private int taken = 0;
+        private volatile boolean stopped = false;
+
+        ProjectPreparer(int count) {
+            this.count = count;
+            // a thread group of its own keeps Ant from passing output
+            // of the thread to the task running this suite
+            thread = new WorkerThreadFactory("AntUnit project preparation", true)
+                .newThread(this);
+            thread.start();
+        }
+
+        public void run() {
+            for (int i = 0; i < count && !stopped; i++) {
+                Object o;
+                try {
+                    o = prjFactory.createProject();
+                } catch (RuntimeException e) {
+                    o = e;
+                } catch (Error e) {
+                    o = e;
+                }
+                try {
+                    ready.put(o);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The next project, created on demand if all prepared
+         * projects have been used.
+         */
+        Project next() {
+            if (taken >= count) {
+                return prjFactory.createProject();
+            }
+            Object o;
+            try {
+                o = ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted while waiting for a project", e);
+            }
+            taken++;
+            if (o instanceof RuntimeException) {
+                throw (RuntimeException) o;
+            } else if (o instanceof Error) {
+                throw (Error) o;
+            }
+            return (Project) o;
+        }
+
+        /**
+         * Stops creating projects and discards those not used.
+         */
+        void stop() {
+            stopped = true;
+            thread.interrupt();
+            ready.clear();
+        }
+    }
+
+    /**
+     * Runs the test targets on a pool of worker threads and replays
+     * their notifications in the order of the targets.
+     *
+     * <p>An unexpected exception of a target keeps the targets that
+     * haven't been started yet from running, the targets already
+     * running are completed - including their tearDown.</p>
+     * @throws Throwable the first unexpected exception of a target
+     * after the notifications of all targets that have been run
+     * have been replayed
+     */
+    private void runTargetsConcurrently(List<String> suiteTargets,
+                                        AntUnitExecutionNotifier notifier)
+        throws Throwable {
+        if (!isSuiteStarted) {
+            throw new AssertionError();
+        }
+        ExecutorService pool =
+            Executors.newFixedThreadPool(parallelTargets,
+                                         new WorkerThreadFactory("AntUnit target"));
+        final AtomicBoolean stopped = new AtomicBoolean();
+        Throwable first = null;
+        try {
+            List<RecordingNotifier> recorders = new ArrayList<RecordingNotifier>();
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final String name : suiteTargets) {
+                final RecordingNotifier recorder = new RecordingNotifier();
+                recorders.add(recorder);
+                results.add(pool.submit(new Runnable() {
+                    public void run() {
+                        if (cancelled || stopped.get()) {
+                            return;
+                        }
+                        try {
+                            Project newProject = prjFactory.createProject();
+                            workerProject.set(newProject);
+                            runTarget(newProject, name, recorder);
+                        } catch (RuntimeException e) {
+                            stopped.set(true);
+                            throw e;
+                        } catch (Error e) {
+                            stopped.set(true);
+                            throw e;
+                        } finally {
+                            workerProject.remove();
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Throwable caught = null;
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    caught = e.getCause();
+                } catch (InterruptedException e) {
+                    pool.shutdownNow();
+                    throw e;
+                }
+                recorders.get(i).replay(notifier);
+                if (caught != null && first == null) {
+                    first = caught;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * Records the notifications of a single test target running
+     * concurrently with other targets.
+     */
+    private static class RecordingNotifier implements AntUnitExecutionNotifier {
+        private final List<Event> events = new ArrayList<Event>();
+
+        public synchronized void fireStartTest(final String targetName) {
+            events.add(new Event() {
+                void replay(AntUnitExecutionNotifier notifier) {
+                    notifier.fireStartTest(targetName);
+                }
+            });
+        }
+
+        public synchronized void fireFail(final String targetName,
+                                          final AssertionFailedException ae) {
+            events.add(new Event() {
+                void replay(AntUnitExecutionNotifier notifier) {
+                    notifier.fireFail(targetName, ae);
+                }
+            });
+        }
+
+        public synchronized void fireError(final String targetName, final Throwable t) {
+            events.add(new Event() {
+                void replay(AntUnitExecutionNotifier notifier) {
+                    notifier.fireError(targetName, t);
+                }
+            });
+        }
+
+        public synchronized void fireEndTest(final String targetName) {
+            events.add(new Event() {
+                void replay(AntUnitExecutionNotifier notifier) {
+                    notifier.fireEndTest(targetName);
+                }
+            });
+        }
+
+        /**
+         * Passes the recorded notifications on with the same pauses
+         * between them as when they have been recorded.
+         */
+        synchronized void replay(AntUnitExecutionNotifier notifier) {
+            ReplayPacer pacer = new ReplayPacer();
+            for (Event e : events) {
+                pacer.await(e.time);
+                e.replay(notifier);
+            }
+        }
+
+        private abstract static class Event {
+            private final long time = System.currentTimeMillis();
+
+            abstract void replay(AntUnitExecutionNotifier notifier);
         }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Echo;
+import org.apache.tools.ant.util.StringUtils;
+
+/**
+ * Asserts the log output of the current project contains all of a
+ * number of texts and regular expressions.
+ *
+ * <p>All texts are searched for in a single pass over the captured
+ * log and the failure message lists all texts and expressions that
+ * couldn't be found.  Regular expressions are matched against each
+ * line of the log individually, like {@link LogMatches} does.</p>
+ *
+ * <p>Works in conjunction with {@link LogCapturer LogCapturer} and
+ * needs the context provided by AntUnit.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class AssertLogContainsAllTask extends Task {
+
+    private final boolean expected;
+    private final List<String> texts = new ArrayList<String>();
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private Echo.EchoLevel level;
+    private int logLevel = Project.MSG_INFO;
+    private boolean mergeLines = true;
+    private String since;
+    private String message;
+
+    public AssertLogContainsAllTask() {
+        this(true);
+    }
+
+    /**
+     * @param expected whether the texts and expressions are expected
+     * to be found
+     */
+    protected AssertLogContainsAllTask(boolean expected) {
+        this.expected = expected;
+    }
+
+    /**
+     * minimal log priority to consult.
+     * @param echoLevel minimal log priority
+     */
+    public void setLevel(Echo.EchoLevel echoLevel) {
+        level = echoLevel;
+        logLevel = echoLevel.getLevel();
+    }
+
+    /**
+     * Whether to merge messages into a single line or split them into
+     * multiple lines.
+     * @param b whether to merge messages into a single line
+     */
+    public void setMergeLines(boolean b) {
+        mergeLines = b;
+    }
+
+    /**
+     * Only consult the log output produced after the given mark.
+     * @param id the id of a {@link LogMark logmark}
+     */
+    public void setSince(String id) {
+        since = id;
+    }
+
+    /**
+     * Message to use when the assertion fails, the texts and
+     * expressions that caused the failure will be appended.
+     * @param m the message
+     */
+    public void setMessage(String m) {
+        message = m;
+    }
+
+    /**
+     * A text to look for.
+     * @param t the text
+     */
+    public void addConfiguredText(Text t) {
+        if (t.value == null) {
+            throw new BuildException("the value attribute is required");
+        }
+        texts.add(t.value);
+    }
+
+    /**
+     * A regular expression to look for.
+     * @param r the expression
+     */
+    public void addConfiguredRegex(Regex r) {
+        if (r.pattern == null) {
+            throw new BuildException("the pattern attribute is required");
+        }
+        patterns.add(PatternCache.compile(r.pattern, r.flags));
+    }
+
+    public void execute() {
+        MultiTextMatcher matcher = new MultiTextMatcher(texts);
+        boolean[] matched = new boolean[patterns.size()];
+        Object o = getProject().getReference(LogCapturer.REFERENCE_ID);
+        if (o instanceof LogCapturer) {
+            scan((LogCapturer) o, matcher, matched);
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (matcher.isFound(i) != expected) {
+                failed.add("'" + texts.get(i) + "'");
+            }
+        }
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i] != expected) {
+                failed.add("pattern '" + patterns.get(i).pattern() + "'");
+            }
+        }
+        if (!failed.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String f : failed) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(f);
+            }
+            String levelName = level == null ? "info" : level.getValue();
+            String m;
+            if (message != null) {
+                m = message + ": " + sb;
+            } else if (expected) {
+                m = "Expected log to contain " + sb + " at level " + levelName;
+            } else {
+                m = "Unexpected log " + sb + " at level " + levelName;
+            }
+            throw new AssertionFailedException(m, getLocation());
+        }
+    }
+
+    private void scan(LogCapturer c, final MultiTextMatcher matcher,
+                      final boolean[] matched) {
+        final int[] remaining = new int[] {matched.length};
+        c.scan(logLevel, LogMark.getPosition(getProject(), since),
+               new LogCapturer.MessageHandler() {
+                   public boolean message(String m) {
+                       matcher.feed(m);
+                       if (!mergeLines) {
+                           matcher.feed(StringUtils.LINE_SEP);
+                       }
+                       for (int i = 0; i < matched.length; i++) {
+                           if (!matched[i] && LogMatches.matchesLine(patterns.get(i), m)) {
+                               matched[i] = true;
+                               remaining[0]--;
+                           }
+                       }
+                       return !matcher.allFound() || remaining[0] > 0;
+                   }
+               });
+    }
+
+    /**
+     * A text to look for.
+     */
+    public static class Text {
+        private String value;
+
+        /**
+         * The text.
+         * @param v the text
+         */
+        public void setValue(String v) {
+            value = v;
+        }
+    }
+
+    /**
+     * A regular expression to look for.
+     */
+    public static class Regex {
+        private String pattern;
+        private String flags;
+
+        /**
+         * The regular expression, using the syntax of
+         * java.util.regex.
+         * @param p the expression
+         */
+        public void setPattern(String p) {
+            pattern = p;
+        }
+
+        /**
+         * Flags to compile the expression with, see {@link
+         * LogMatches#setFlags}.
+         * @param f the flags
+         */
+        public void setFlags(String f) {
+            flags = f;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+/**
+ * Asserts the log output of the current project contains none of a
+ * number of texts and regular expressions.
+ *
+ * <p>All texts are searched for in a single pass over the captured
+ * log and the failure message lists all texts and expressions that
+ * have been found.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class AssertLogContainsNoneTask extends AssertLogContainsAllTask {
+
+    public AssertLogContainsNoneTask() {
+        super(false);
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.JAXPUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Collects the names of the targets of a build file without
+ * configuring a project.
+ *
+ * <p>The build file and the files it imports or includes are
+ * streamed through a SAX parser and only the target definitions
+ * directly nested into the project element are looked at, no
+ * top-level tasks are executed and no antlibs are loaded.  Names of
+ * imported targets are collected the way Ant's default ProjectHelper
+ * would define them, including the prefixed names.</p>
+ *
+ * <p>The files to import are resolved by expanding user properties
+ * of the given project, <code>basedir</code>,
+ * <code>ant.file</code>, <code>ant.file.<em>projectname</em></code>
+ * and top-level properties defined using the <code>value</code> or
+ * <code>location</code> attributes.  If an import can not be
+ * resolved that way the result is {@link #isComplete incomplete}
+ * and callers that need all targets should configure the project
+ * instead.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class BuildFileScanner {
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private final File buildFile;
+
+    /**
+     * Project to read user properties from, may be null.
+     */
+    private final Project project;
+
+    /**
+     * Names of all targets in the order they have been found.
+     */
+    private final Set<String> targetNames = new LinkedHashSet<String>();
+
+    /**
+     * Properties known while scanning, the first definition wins.
+     */
+    private final Map<String, String> properties = new HashMap<String, String>();
+
+    /**
+     * Files that have been scanned already.
+     */
+    private final Set<File> scannedFiles = new HashSet<File>();
+
+    private File baseDir;
+
+    private boolean complete = true;
+
+    private boolean scanned = false;
+
+    /**
+     * Create a scanner for the given build file.
+     * @param buildFile the build file to scan
+     * @param project project whose user properties are used to
+     * resolve imports, may be null
+     */
+    public BuildFileScanner(File buildFile, Project project) {
+        this.buildFile = FILE_UTILS.normalize(buildFile.getAbsolutePath());
+        this.project = project;
+    }
+
+    /**
+     * Scans the build file and its imports, does nothing if the file
+     * has been scanned already.
+     * @throws BuildException if one of the files can not be parsed
+     */
+    public synchronized void scan() throws BuildException {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+        properties.put(MagicNames.ANT_FILE, buildFile.getAbsolutePath());
+        scan(buildFile, new Context(null, false, ".", false), true);
+    }
+
+    /**
+     * The names of all targets of the build file.
+     * @return the names in the order they have been defined
+     */
+    public synchronized Set<String> getTargetNames() {
+        scan();
+        return targetNames;
+    }
+
+    /**
+     * The names of the test targets of the build file.
+     * @return the names in the order they have been defined
+     */
+    public synchronized List<String> getTestTargets() {
+        List<String> tests = new ArrayList<String>();
+        for (String name : getTargetNames()) {
+            if (AntUnitScriptRunner.isTestTarget(name)) {
+                tests.add(name);
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * Whether all imported files could be resolved and scanned.
+     * @return false if the build file may define targets that have
+     * not been found
+     */
+    public synchronized boolean isComplete() {
+        scan();
+        return complete;
+    }
+
+    private void scan(File f, Context context, boolean mainFile) {
+        if (!scannedFiles.add(f)) {
+            return;
+        }
+        try {
+            XMLReader reader = JAXPUtils.getNamespaceXMLReader();
+            reader.setContentHandler(new Handler(f, context, mainFile));
+            InputSource source = new InputSource(JAXPUtils.getSystemId(f));
+            reader.parse(source);
+        } catch (SAXParseException e) {
+            throw new BuildException(e.getMessage(),
+                                     new Location(e.getSystemId(),
+                                                  e.getLineNumber(),
+                                                  e.getColumnNumber()));
+        } catch (SAXException e) {
+            throw new BuildException("Failed to scan " + f, e);
+        } catch (IOException e) {
+            throw new BuildException("Failed to scan " + f, e);
+        }
+    }
+
+    /**
+     * Expands properties, returns null if a property is not known.
+     */
+    private String expand(String value) {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos < value.length()) {
+            int dollar = value.indexOf('$', pos);
+            if (dollar < 0 || dollar == value.length() - 1) {
+                sb.append(value.substring(pos));
+                break;
+            }
+            sb.append(value.substring(pos, dollar));
+            char next = value.charAt(dollar + 1);
+            if (next == '$') {
+                sb.append('$');
+                pos = dollar + 2;
+            } else if (next == '{') {
+                int end = value.indexOf('}', dollar);
+                if (end < 0) {
+                    return null;
+                }
+                String v = getProperty(value.substring(dollar + 2, end));
+                if (v == null) {
+                    return null;
+                }
+                sb.append(v);
+                pos = end + 1;
+            } else {
+                sb.append('$');
+                pos = dollar + 1;
+            }
+        }
+        return sb.toString();
+    }
+
+    private String getProperty(String name) {
+        if (project != null) {
+            String v = project.getUserProperty(name);
+            if (v != null) {
+                return v;
+            }
+        }
+        return properties.get(name);
+    }
+
+    private void setProperty(String name, String value) {
+        if (getProperty(name) == null) {
+            properties.put(name, value);
+        }
+    }
+
+    /**
+     * Target prefix state of the file being scanned, mirrors what
+     * the import and include tasks tell Ant's ProjectHelper.
+     */
+    private static class Context {
+        /**
+         * The prefix, null if the project name is used.
+         */
+        private final String prefix;
+        /**
+         * Whether the file has been imported with a prefix - explicit
+         * or the project's name - in effect.
+         */
+        private final boolean prefixed;
+        private final String separator;
+        private final boolean includeMode;
+
+        Context(String prefix, boolean prefixed, String separator, boolean includeMode) {
+            this.prefix = prefix;
+            this.prefixed = prefixed;
+            this.separator = separator;
+            this.includeMode = includeMode;
+        }
+    }
+
+    /**
+     * Looks at the children of the project element of a single file.
+     */
+    private class Handler extends DefaultHandler {
+        private final File file;
+        private final Context context;
+        private final boolean mainFile;
+        private String projectName;
+        private int depth = 0;
+
+        Handler(File file, Context context, boolean mainFile) {
+            this.file = file;
+            this.context = context;
+            this.mainFile = mainFile;
+        }
+
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attrs) {
+            depth++;
+            if (!isAntCore(uri)) {
+                return;
+            }
+            if (depth == 1 && "project".equals(localName)) {
+                project(attrs);
+            } else if (depth == 2 && ("target".equals(localName)
+                                      || "extension-point".equals(localName))) {
+                target(attrs.getValue("name"));
+            } else if (depth == 2 && ("import".equals(localName)
+                                      || "include".equals(localName))) {
+                importFile(attrs, "include".equals(localName));
+            } else if (depth == 2 && "property".equals(localName)) {
+                property(attrs);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            depth--;
+        }
+
+        private boolean isAntCore(String uri) {
+            return uri == null || uri.length() == 0
+                || ProjectHelper.ANT_CORE_URI.equals(uri);
+        }
+
+        private void project(Attributes attrs) {
+            projectName = attrs.getValue("name");
+            if (projectName != null && projectName.length() == 0) {
+                projectName = null;
+            }
+            if (mainFile) {
+                String base = attrs.getValue("basedir");
+                baseDir = base == null ? file.getParentFile()
+                    : FILE_UTILS.resolveFile(file.getParentFile(), base);
+                setProperty(MagicNames.PROJECT_BASEDIR, baseDir.getAbsolutePath());
+                if (projectName != null) {
+                    setProperty(MagicNames.PROJECT_NAME, projectName);
+                }
+            }
+            if (projectName != null) {
+                setProperty(MagicNames.ANT_FILE + "." + projectName,
+                            file.getAbsolutePath());
+            }
+        }
+
+        private void target(String name) {
+            if (name == null || name.length() == 0) {
+                return;
+            }
+            if (mainFile) {
+                targetNames.add(name);
+                return;
+            }
+            String prefix = getPrefix();
+            if (context.includeMode) {
+                if (prefix != null) {
+                    targetNames.add(prefix + context.separator + name);
+                }
+            } else {
+                targetNames.add(name);
+                if (prefix != null) {
+                    targetNames.add(prefix + context.separator + name);
+                }
+            }
+        }
+
+        /**
+         * The prefix of the targets of the file being scanned.
+         */
+        private String getPrefix() {
+            return context.prefix != null ? context.prefix : projectName;
+        }
+
+        private void importFile(Attributes attrs, boolean include) {
+            String name = attrs.getValue("file");
+            if (name == null) {
+                // nested resource collections
+                complete = false;
+                return;
+            }
+            name = expand(name);
+            if (name == null) {
+                complete = false;
+                return;
+            }
+            File imported = FILE_UTILS.resolveFile(file.getParentFile(), name);
+            if (!imported.isFile()) {
+                if (!Project.toBoolean(attrs.getValue("optional"))) {
+                    complete = false;
+                }
+                return;
+            }
+            String as = attrs.getValue("as");
+            String separator = attrs.getValue("prefixSeparator");
+            if (separator == null) {
+                separator = ".";
+            }
+            Context nested;
+            if (as == null) {
+                nested = include || context.prefixed
+                    ? new Context(include ? null : getPrefix(), true, separator, include)
+                    : new Context(null, false, separator, include);
+            } else if (include && context.prefixed) {
+                nested = new Context(getPrefix() + context.separator + as, true,
+                                     separator, include);
+            } else {
+                nested = new Context(as, true, separator, include);
+            }
+            scan(imported, nested, false);
+        }
+
+        private void property(Attributes attrs) {
+            String name = attrs.getValue("name");
+            if (name == null) {
+                return;
+            }
+            String value = attrs.getValue("value");
+            String location = attrs.getValue("location");
+            if (value != null) {
+                value = expand(value);
+                if (value != null) {
+                    setProperty(name, value);
+                }
+            } else if (location != null) {
+                location = expand(location);
+                if (location != null) {
+                    setProperty(name, FILE_UTILS.resolveFile(baseDir, location)
+                                .getAbsolutePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.ProjectHelperRepository;
+import org.apache.tools.ant.helper.AntXMLContext;
+import org.apache.tools.ant.helper.ProjectHelper2;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.util.FileUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * ProjectHelper that reads build files - including the files they
+ * import or include - from a cache shared by all test projects of
+ * the VM.
+ *
+ * <p>The cache holds the SAX events of the most recently parsed
+ * build files, keyed by canonical path, modification time and size, and
+ * replays them into the handlers of Ant's default ProjectHelper
+ * instead of parsing the XML again.  Everything else - creating targets,
+ * running top-level tasks, resolving imports - happens exactly as
+ * it does without the cache.</p>
+ *
+ * <p>As the import task looks up the ProjectHelper to use for the
+ * imported file on its own, this helper is registered with Ant's
+ * ProjectHelperRepository.  It only uses the cache for projects
+ * that have been {@link #enable enabled} and only claims build files
+ * Ant's default ProjectHelper would read anyway, any other project
+ * gets the behavior of the default ProjectHelper.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class CachingProjectHelper extends ProjectHelper2 {
+
+    /**
+     * Reference marking projects that use the cache.
+     */
+    private static final String REFID_ENABLED = "antunit.parse.cache";
+
+    /**
+     * Reference ProjectHelper2 stores its parsing context in.
+     */
+    private static final String REFID_CONTEXT = "ant.parsing.context";
+
+    /**
+     * System property that turns off the cache for the JUnit
+     * adapters if set to false.
+     */
+    public static final String ENABLED_PROPERTY = "antunit.parsecache";
+
+    /**
+     * Maximum number of build files to keep.
+     */
+    private static final int MAX_SIZE = 64;
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private static final Map<String, Recording> CACHE =
+        new LinkedHashMap<String, Recording>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String, Recording> e) {
+                return size() > MAX_SIZE;
+            }
+        };
+
+    private static boolean registered = false;
+
+    /**
+     * Makes the project use the cache for the build file parsed
+     * after this method has been invoked and all files it imports.
+     * @param p the project
+     */
+    public static void enable(Project p) {
+        synchronized (CACHE) {
+            if (!registered) {
+                ProjectHelperRepository.getInstance()
+                    .registerProjectHelper(CachingProjectHelper.class);
+                registered = true;
+            }
+        }
+        p.addReference(REFID_ENABLED, Boolean.TRUE);
+    }
+
+    /**
+     * Whether the {@link #ENABLED_PROPERTY} system property allows
+     * the JUnit adapters to use the cache.
+     * @return true unless the property has been set to false
+     */
+    public static boolean isEnabledForJUnit() {
+        return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * Only claims the build files Ant's default ProjectHelper would
+     * read without this helper.
+     * @param buildFile the build file
+     * @return whether the build file is read by the default helper
+     */
+    public boolean canParseBuildFile(Resource buildFile) {
+        Iterator<ProjectHelper> helpers = ProjectHelperRepository.getInstance().getHelpers();
+        while (helpers.hasNext()) {
+            ProjectHelper h = helpers.next();
+            if (!(h instanceof CachingProjectHelper) && h.canParseBuildFile(buildFile)) {
+                return h.getClass() == ProjectHelper2.class;
+            }
+        }
+        return false;
+    }
+
+    public void parse(Project project, Object source, RootHandler handler)
+        throws BuildException {
+        File buildFile = getFile(source);
+        AntXMLContext context = (AntXMLContext) project.getReference(REFID_CONTEXT);
+        if (buildFile == null || context == null
+            || project.getReference(REFID_ENABLED) == null
+            || handler.getCurrentAntHandler() != getMainHandler()) {
+            super.parse(project, source, handler);
+            return;
+        }
+
+        buildFile = FILE_UTILS.normalize(buildFile.getAbsolutePath());
+        String key;
+        try {
+            key = buildFile.getCanonicalPath();
+        } catch (IOException e) {
+            super.parse(project, source, handler);
+            return;
+        }
+        long lastModified = buildFile.lastModified();
+        long length = buildFile.length();
+        Recording r;
+        synchronized (CACHE) {
+            r = CACHE.get(key);
+        }
+        if (r == null || r.lastModified != lastModified || r.length != length) {
+            r = new Recording(lastModified, length, context, handler);
+            super.parse(project, source, r);
+            synchronized (CACHE) {
+                CACHE.put(key, r);
+            }
+            return;
+        }
+
+        context.setBuildFile(buildFile);
+        project.log("parsing buildfile " + buildFile + " from the parse cache",
+                    Project.MSG_VERBOSE);
+        try {
+            r.replay(handler);
+        } catch (SAXParseException exc) {
+            // same treatment as in ProjectHelper2
+            Location location = new Location(exc.getSystemId(), exc.getLineNumber(),
+                                             exc.getColumnNumber());
+            Throwable t = exc.getException();
+            if (t instanceof BuildException) {
+                BuildException be = (BuildException) t;
+                if (be.getLocation() == Location.UNKNOWN_LOCATION) {
+                    be.setLocation(location);
+                }
+                throw be;
+            }
+            throw new BuildException(exc.getMessage(), t == null ? exc : t, location);
+        } catch (SAXException exc) {
+            Throwable t = exc.getException();
+            if (t instanceof BuildException) {
+                throw (BuildException) t;
+            }
+            throw new BuildException(exc.getMessage(), t == null ? exc : t);
+        }
+    }
+
+    /**
+     * The local file to parse, null if the source is something else.
+     */
+    private static File getFile(Object source) {
+        if (source instanceof File) {
+            return (File) source;
+        }
+        if (source instanceof FileProvider) {
+            return ((FileProvider) source).getFile();
+        }
+        return null;
+    }
+
+    /**
+     * The SAX events of a build file, recorded while passing them on
+     * to the handler of the first project parsing the file.
+     */
+    private static class Recording extends RootHandler {
+        private final long lastModified;
+        private final long length;
+        private final RootHandler delegate;
+        private final List<Event> events = new ArrayList<Event>();
+        private Locator locator;
+        private String systemId;
+        private String publicId;
+
+        Recording(long lastModified, long length, AntXMLContext context,
+                  RootHandler delegate) {
+            super(context, null);
+            this.lastModified = lastModified;
+            this.length = length;
+            this.delegate = delegate;
+        }
+
+        public AntHandler getCurrentAntHandler() {
+            return delegate.getCurrentAntHandler();
+        }
+
+        public org.xml.sax.InputSource resolveEntity(String publicId, String systemId) {
+            return delegate.resolveEntity(publicId, systemId);
+        }
+
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+            delegate.setDocumentLocator(locator);
+        }
+
+        public void startElement(String uri, String tag, String qname, Attributes attrs)
+            throws SAXParseException {
+            record(new Event(Event.START_ELEMENT, uri, tag, qname,
+                             new AttributesImpl(attrs), null));
+            delegate.startElement(uri, tag, qname, attrs);
+        }
+
+        public void endElement(String uri, String name, String qName)
+            throws SAXException {
+            record(new Event(Event.END_ELEMENT, uri, name, qName, null, null));
+            delegate.endElement(uri, name, qName);
+        }
+
+        public void characters(char[] buf, int start, int count)
+            throws SAXParseException {
+            char[] copy = new char[count];
+            System.arraycopy(buf, start, copy, 0, count);
+            record(new Event(Event.CHARACTERS, null, null, null, null, copy));
+            delegate.characters(buf, start, count);
+        }
+
+        public void startPrefixMapping(String prefix, String uri) {
+            record(new Event(Event.START_PREFIX_MAPPING, uri, prefix, null, null, null));
+            delegate.startPrefixMapping(prefix, uri);
+        }
+
+        public void endPrefixMapping(String prefix) {
+            record(new Event(Event.END_PREFIX_MAPPING, null, prefix, null, null, null));
+            delegate.endPrefixMapping(prefix);
+        }
+
+        private void record(Event e) {
+            if (locator != null) {
+                systemId = locator.getSystemId();
+                publicId = locator.getPublicId();
+                e.line = locator.getLineNumber();
+                e.column = locator.getColumnNumber();
+            }
+            events.add(e);
+        }
+
+        /**
+         * Passes the recorded events to a handler.
+         */
+        void replay(RootHandler handler) throws SAXException {
+            ReplayLocator l = new ReplayLocator(systemId, publicId);
+            handler.setDocumentLocator(l);
+            for (Event e : events) {
+                l.line = e.line;
+                l.column = e.column;
+                switch (e.type) {
+                case Event.START_ELEMENT:
+                    handler.startElement(e.uri, e.name, e.qname, e.attrs);
+                    break;
+                case Event.END_ELEMENT:
+                    handler.endElement(e.uri, e.name, e.qname);
+                    break;
+                case Event.CHARACTERS:
+                    handler.characters(e.text, 0, e.text.length);
+                    break;
+                case Event.START_PREFIX_MAPPING:
+                    handler.startPrefixMapping(e.name, e.uri);
+                    break;
+                default:
+                    handler.endPrefixMapping(e.name);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A single recorded SAX event.
+     */
+    private static class Event {
+        private static final int START_ELEMENT = 0;
+        private static final int END_ELEMENT = 1;
+        private static final int CHARACTERS = 2;
+        private static final int START_PREFIX_MAPPING = 3;
+        private static final int END_PREFIX_MAPPING = 4;
+
+        private final int type;
+        private final String uri;
+        private final String name;
+        private final String qname;
+        private final Attributes attrs;
+        private final char[] text;
+        private int line = -1;
+        private int column = -1;
+
+        Event(int type, String uri, String name, String qname, Attributes attrs,
+              char[] text) {
+            this.type = type;
+            this.uri = uri;
+            this.name = name;
+            this.qname = qname;
+            this.attrs = attrs;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Reports the position of the event being replayed.
+     */
+    private static class ReplayLocator implements Locator {
+        private final String systemId;
+        private final String publicId;
+        private int line = -1;
+        private int column = -1;
+
+        ReplayLocator(String systemId, String publicId) {
+            this.systemId = systemId;
+            this.publicId = publicId;
+        }
+
+        public String getPublicId() {
+            return publicId;
+        }
+
+        public String getSystemId() {
+            return systemId;
+        }
+
+        public int getLineNumber() {
+            return line;
+        }
+
+        public int getColumnNumber() {
+            return column;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.DemuxOutputStream;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.LogLevel;
+import org.apache.tools.ant.types.PropertySet;
+import org.apache.tools.ant.types.resources.FileResource;
+
+/**
+ * Runs AntUnit build files on behalf of an &lt;antunit&gt; task
+ * running in a different VM.
+ *
+ * <p>The parent VM sends commands on the standard input of this VM
+ * and receives the notifications of the AntUnitListener protocol on
+ * the standard output, output of the tests themselves is logged to
+ * the test projects and passed on as log messages.  The VM runs one
+ * build file at a time and keeps running until it is told to exit
+ * or its standard input is closed.</p>
+ *
+ * <p>This class also holds the encoding of the wire format shared
+ * by both sides.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class ForkedAntUnit {
+
+    /** parent: run a build file. */
+    static final int RUN = 1;
+    /** parent: terminate. */
+    static final int EXIT = 2;
+    /** parent: don't start any further test targets. */
+    static final int CANCEL = 3;
+
+    /** worker: a new test project. */
+    static final int PROJECT = 10;
+    /** worker: startTestSuite. */
+    static final int START_SUITE = 11;
+    /** worker: endTestSuite. */
+    static final int END_SUITE = 12;
+    /** worker: startTest. */
+    static final int START_TEST = 13;
+    /** worker: endTest. */
+    static final int END_TEST = 14;
+    /** worker: addFailure. */
+    static final int FAILURE = 15;
+    /** worker: addError. */
+    static final int ERROR = 16;
+    /** worker: a message logged by a test project. */
+    static final int MESSAGE = 17;
+    /** worker: the build file has been completed. */
+    static final int DONE = 18;
+    /** worker: the build file could not be run. */
+    static final int ABORT = 19;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * The task running the current build file, if any.
+     */
+    private volatile AntUnit current;
+
+    /**
+     * Whether the current build file has been cancelled.
+     */
+    private volatile boolean cancelled;
+
+    private ForkedAntUnit(DataInputStream in, DataOutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Entry point of the worker VM.
+     * @param args ignored
+     * @throws IOException if the connection to the parent VM breaks
+     */
+    public static void main(String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out)));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(FileDescriptor.in)));
+        // nothing but the protocol may go to the real stdout and
+        // nobody is going to type anything
+        System.setOut(System.err);
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+        new ForkedAntUnit(in, out).run();
+        System.exit(0);
+    }
+
+    /**
+     * Reads the commands of the parent, build files are run on a
+     * separate thread so they can be cancelled while they are
+     * running.
+     */
+    private void run() throws IOException {
+        Thread running = null;
+        while (true) {
+            int command;
+            try {
+                command = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (command == EXIT) {
+                return;
+            } else if (command == CANCEL) {
+                cancelled = true;
+                AntUnit antunit = current;
+                if (antunit != null) {
+                    antunit.cancel();
+                }
+                continue;
+            } else if (command != RUN) {
+                throw new IOException("Unknown command " + command);
+            }
+            final File buildFile = new File(readString(in));
+            final int parallelTargets = in.readInt();
+            final int prepareProjects = in.readInt();
+            final String captureLevel = readString(in);
+            final int logMemoryLimit = in.readInt();
+            final boolean parseOnce = in.readBoolean();
+            final boolean parseCache = in.readBoolean();
+            final long timeout = in.readLong();
+            final int maxFailures = in.readInt();
+            final Map<String, String> userProperties = readMap(in);
+            final Map<String, String> inheritedProperties = readMap(in);
+            final String history = readString(in);
+            final String order = readString(in);
+            final String shards = readString(in);
+            if (running != null) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            cancelled = false;
+            running = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            runBuildFile(buildFile, parallelTargets, prepareProjects,
+                                         captureLevel, logMemoryLimit,
+                                         parseOnce, parseCache, timeout,
+                                         maxFailures, userProperties, inheritedProperties, history,
+                                         order, shards);
+                        } catch (IOException e) {
+                            // the parent VM is gone
+                            e.printStackTrace();
+                            System.exit(1);
+                        } catch (Error e) {
+                            // the VM may be unusable and the protocol
+                            // in an undefined state, let the parent
+                            // VM see the worker die
+                            e.printStackTrace();
+                            System.exit(1);
+                        }
+                    }
+                }, "AntUnit build file");
+            running.start();
+        }
+    }
+
+    private void runBuildFile(File buildFile, int parallelTargets, int prepareProjects,
+                              String captureLevel, int logMemoryLimit,
+                              boolean parseOnce, boolean parseCache, long timeout,
+                              int maxFailures,
+                              Map<String, String> userProperties,
+                              Map<String, String> inheritedProperties,
+                              String history, String order, String shards)
+        throws IOException {
+        Project p = new Project();
+        PrintStream savedOut = System.out;
+        PrintStream savedErr = System.err;
+        try {
+            p.init();
+            for (Map.Entry<String, String> e : userProperties.entrySet()) {
+                p.setUserProperty(e.getKey(), e.getValue());
+            }
+            AntUnit antunit = new AntUnit();
+            antunit.setProject(p);
+            antunit.setTaskName("antunit");
+            antunit.setFailOnError(false);
+            antunit.setParallelTargets(parallelTargets);
+            antunit.setPrepareProjects(prepareProjects);
+            LogLevel level = new LogLevel();
+            level.setValue(captureLevel);
+            antunit.setCaptureLevel(level);
+            antunit.setLogMemoryLimit(logMemoryLimit);
+            antunit.setParseOnce(parseOnce);
+            antunit.setParseCache(parseCache);
+            antunit.setTimeout(timeout);
+            antunit.setMaxFailures(maxFailures);
+            antunit.add(new FileResource(buildFile));
+            if (history != null) {
+                antunit.setHistory(TestHistory.valueOf(history));
+                antunit.setOrder(new AntUnit.Order(order));
+            }
+            if (shards != null) {
+                antunit.setShards(TestShards.valueOf(shards));
+            }
+            if (!inheritedProperties.isEmpty()) {
+                PropertySet ps = new PropertySet();
+                ps.setProject(p);
+                for (Map.Entry<String, String> e : inheritedProperties.entrySet()) {
+                    p.setNewProperty(e.getKey(), e.getValue());
+                    PropertySet.PropertyRef ref = new PropertySet.PropertyRef();
+                    ref.setName(e.getKey());
+                    ps.addPropertyref(ref);
+                }
+                antunit.addPropertySet(ps);
+            }
+            antunit.add(new EventWriter());
+            current = antunit;
+            if (cancelled) {
+                antunit.cancel();
+            }
+            System.setOut(new PrintStream(new DemuxOutputStream(p, false)));
+            System.setErr(new PrintStream(new DemuxOutputStream(p, true)));
+            p.registerThreadTask(Thread.currentThread(), antunit);
+            antunit.execute();
+            synchronized (out) {
+                out.writeInt(DONE);
+                out.flush();
+            }
+        } catch (RuntimeException e) {
+            synchronized (out) {
+                out.writeInt(ABORT);
+                writeThrowable(out, e);
+                out.flush();
+            }
+        } finally {
+            current = null;
+            p.registerThreadTask(Thread.currentThread(), null);
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+        }
+    }
+
+    /**
+     * Writes a string that may be null or longer than writeUTF
+     * supports.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Writes a map of strings.
+     */
+    static void writeMap(DataOutputStream out, Map<String, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, ?> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, String.valueOf(e.getValue()));
+        }
+    }
+
+    /**
+     * Reads a map written by {@link #writeMap}.
+     */
+    static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a Throwable serialized if possible and its message
+     * otherwise.
+     */
+    static void writeThrowable(DataOutputStream out, Throwable t) throws IOException {
+        byte[] serialized = null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(t);
+            oos.close();
+            serialized = bos.toByteArray();
+        } catch (IOException e) {
+            // not serializable
+        }
+        writeString(out, t.toString());
+        if (serialized == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(serialized.length);
+            out.write(serialized);
+        }
+    }
+
+    /**
+     * Reads a Throwable written by {@link #writeThrowable}, creating
+     * a BuildException from the message if the Throwable itself can
+     * not be restored.
+     * @param failure whether an AssertionFailedException is expected
+     */
+    static Throwable readThrowable(DataInputStream in, boolean failure)
+        throws IOException {
+        String message = readString(in);
+        int len = in.readInt();
+        if (len >= 0) {
+            byte[] b = new byte[len];
+            in.readFully(b);
+            try {
+                Object o = new ObjectInputStream(new ByteArrayInputStream(b)).readObject();
+                if (!failure && o instanceof Throwable
+                    || o instanceof AssertionFailedException) {
+                    return (Throwable) o;
+                }
+            } catch (ClassNotFoundException e) {
+                // fall back to the message
+            } catch (IOException e) {
+                // fall back to the message
+            }
+        }
+        return failure ? new AssertionFailedException(message)
+            : new BuildException(message);
+    }
+
+    /**
+     * Sends the notifications of the AntUnit task to the parent VM.
+     */
+    private class EventWriter implements AntUnitListener {
+        private final Map<Project, Integer> ids = new IdentityHashMap<Project, Integer>();
+
+        public void setParentTask(Task t) {
+        }
+
+        public void setCurrentTestProject(Project p) {
+            final int id = ids.size();
+            ids.put(p, Integer.valueOf(id));
+            synchronized (out) {
+                try {
+                    out.writeInt(PROJECT);
+                    out.writeInt(id);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new BuildException(e);
+                }
+            }
+            p.addBuildListener(new BuildListener() {
+                public void messageLogged(BuildEvent event) {
+                    synchronized (out) {
+                        try {
+                            out.writeInt(MESSAGE);
+                            out.writeInt(id);
+                            out.writeInt(event.getPriority());
+                            writeString(out, event.getMessage());
+                            out.flush();
+                        } catch (IOException e) {
+                            throw new BuildException(e);
+                        }
+                    }
+                }
+                public void buildStarted(BuildEvent event) {}
+                public void buildFinished(BuildEvent event) {}
+                public void targetStarted(BuildEvent event) {}
+                public void targetFinished(BuildEvent event) {}
+                public void taskStarted(BuildEvent event) {}
+                public void taskFinished(BuildEvent event) {}
+            });
+        }
+
+        public void startTestSuite(Project testProject, String buildFile) {
+            writeSuiteEvent(START_SUITE, testProject, buildFile);
+        }
+
+        public void endTestSuite(Project testProject, String buildFile) {
+            writeSuiteEvent(END_SUITE, testProject, buildFile);
+        }
+
+        public void startTest(String target) {
+            writeTestEvent(START_TEST, target, null);
+        }
+
+        public void endTest(String target) {
+            writeTestEvent(END_TEST, target, null);
+        }
+
+        public void addFailure(String target, AssertionFailedException ae) {
+            writeTestEvent(FAILURE, target, ae);
+        }
+
+        public void addError(String target, Throwable ae) {
+            writeTestEvent(ERROR, target, ae);
+        }
+
+        private void writeSuiteEvent(int type, Project testProject, String buildFile) {
+            Integer id = ids.get(testProject);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> props = new HashMap<String, Object>(testProject.getProperties());
+            synchronized (out) {
+                try {
+                    out.writeInt(type);
+                    out.writeInt(id != null ? id.intValue() : -1);
+                    writeString(out, buildFile);
+                    writeString(out, testProject.getName());
+                    writeMap(out, props);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new BuildException(e);
+                }
+            }
+        }
+
+        private void writeTestEvent(int type, String target, Throwable t) {
+            synchronized (out) {
+                try {
+                    out.writeInt(type);
+                    writeString(out, target);
+                    if (t != null) {
+                        writeThrowable(out, t);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    throw new BuildException(e);
+                }
+            }
+        }
+    }
+}
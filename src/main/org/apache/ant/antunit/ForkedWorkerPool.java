@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.StreamPumper;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Worker VMs running build files for &lt;antunit&gt; in fork mode.
+ *
+ * <p>Each worker runs {@link ForkedAntUnit}, a worker is used by one
+ * thread at a time.  Workers are either reused for all build files
+ * or used for a single build file and then terminated.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class ForkedWorkerPool {
+
+    private final Task task;
+    private final String[] commandLine;
+    private final boolean reuse;
+    private final LinkedList<Worker> idle = new LinkedList<Worker>();
+    private final List<Worker> all = new ArrayList<Worker>();
+    private boolean closed;
+
+    /**
+     * @param task the task to log stderr of the workers to
+     * @param commandLine the command line starting a worker
+     * @param reuse whether a worker may run more than one build file
+     */
+    ForkedWorkerPool(Task task, String[] commandLine, boolean reuse) {
+        this.task = task;
+        this.commandLine = commandLine;
+        this.reuse = reuse;
+    }
+
+    /**
+     * Runs a build file in a worker VM.
+     * @param buildFile the build file
+     * @param parallelTargets number of test targets to run concurrently
+     * @param prepareProjects number of projects to create in advance
+     * @param captureLevel most detailed level of log messages to
+     * capture
+     * @param logMemoryLimit number of characters of captured log
+     * messages to keep in memory
+     * @param parseOnce whether to parse the build file only once
+     * @param parseCache whether to read build files from the parse
+     * cache
+     * @param timeout timeout of a single test target
+     * @param maxFailures number of failures and errors to stop
+     * after, 0 for no limit
+     * @param userProperties user properties of the worker's project
+     * @param inheritedProperties properties to pass to the test
+     * projects like property sets do
+     * @param history history used to order the test targets, may be
+     * null
+     * @param order the order of the test targets
+     * @param shards shards used to select the test targets, may be
+     * null
+     * @param notifications receives the notifications of the build file
+     * @throws BuildException if the build file could not be run
+     */
+    void run(File buildFile, int parallelTargets, int prepareProjects,
+             String captureLevel, int logMemoryLimit, boolean parseOnce, boolean parseCache,
+             long timeout, int maxFailures, Map<String, String> userProperties, Map<String, String> inheritedProperties,
+             TestHistory history, String order, TestShards shards,
+             Notifications notifications) throws BuildException {
+        Worker w = acquire();
+        try {
+            w.run(buildFile, parallelTargets, prepareProjects, captureLevel,
+                  logMemoryLimit, parseOnce, parseCache, timeout,
+                  maxFailures,
+                  userProperties,
+                  inheritedProperties, history, order, shards, notifications);
+        } finally {
+            release(w);
+        }
+    }
+
+    /**
+     * Tells all busy workers not to start any further test targets.
+     */
+    void cancel() {
+        List<Worker> busy;
+        synchronized (this) {
+            busy = new ArrayList<Worker>(all);
+            busy.removeAll(idle);
+        }
+        for (Worker w : busy) {
+            w.cancel();
+        }
+    }
+
+    /**
+     * Terminates all workers.
+     */
+    void close() {
+        List<Worker> workers;
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<Worker>(all);
+            all.clear();
+            idle.clear();
+        }
+        for (Worker w : workers) {
+            w.close();
+        }
+    }
+
+    private Worker acquire() {
+        synchronized (this) {
+            if (closed) {
+                throw new BuildException("worker pool has been closed");
+            }
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+        Worker w = new Worker();
+        synchronized (this) {
+            all.add(w);
+        }
+        return w;
+    }
+
+    private void release(Worker w) {
+        synchronized (this) {
+            if (reuse && w.usable && !closed) {
+                idle.addFirst(w);
+                return;
+            }
+            all.remove(w);
+        }
+        w.close();
+    }
+
+    /**
+     * Receives the notifications of a build file running in a worker.
+     */
+    interface Notifications {
+        /**
+         * Passes a new test project to the listeners.
+         * @param p stands in for the project of the worker
+         */
+        void setCurrentTestProject(Project p);
+        void startTestSuite(Project p, String buildFile);
+        void endTestSuite(Project p, String buildFile);
+        void startTest(String target);
+        void endTest(String target);
+        void addFailure(String target, AssertionFailedException ae);
+        void addError(String target, Throwable t);
+    }
+
+    /**
+     * A single worker VM.
+     */
+    private class Worker {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final Thread errPumper;
+
+        /**
+         * Whether the worker can run another build file.
+         */
+        private boolean usable = true;
+
+        Worker() {
+            task.log("Starting worker VM " + Arrays.asList(commandLine),
+                     Project.MSG_VERBOSE);
+            try {
+                process = Runtime.getRuntime().exec(commandLine);
+            } catch (IOException e) {
+                throw new BuildException("Failed to start worker VM", e,
+                                         task.getLocation());
+            }
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            errPumper = new Thread(new StreamPumper(process.getErrorStream(),
+                                                   new LogOutputStream(task,
+                                                                       Project.MSG_WARN),
+                                                   true));
+            errPumper.setDaemon(true);
+            errPumper.start();
+        }
+
+        void run(File buildFile, int parallelTargets, int prepareProjects,
+                 String captureLevel, int logMemoryLimit, boolean parseOnce, boolean parseCache,
+                 long timeout, int maxFailures, Map<String, String> userProperties,
+                 Map<String, String> inheritedProperties,
+                 TestHistory history, String order, TestShards shards,
+                 Notifications n) {
+            usable = false;
+            try {
+                synchronized (out) {
+                    out.writeInt(ForkedAntUnit.RUN);
+                    ForkedAntUnit.writeString(out, buildFile.getAbsolutePath());
+                    out.writeInt(parallelTargets);
+                    out.writeInt(prepareProjects);
+                    ForkedAntUnit.writeString(out, captureLevel);
+                    out.writeInt(logMemoryLimit);
+                    out.writeBoolean(parseOnce);
+                    out.writeBoolean(parseCache);
+                    out.writeLong(timeout);
+                    out.writeInt(maxFailures);
+                    ForkedAntUnit.writeMap(out, userProperties);
+                    ForkedAntUnit.writeMap(out, inheritedProperties);
+                    ForkedAntUnit.writeString(out, history != null ? history.toString() : null);
+                    ForkedAntUnit.writeString(out, order);
+                    ForkedAntUnit.writeString(out, shards != null ? shards.toString() : null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw new BuildException("Failed to talk to worker VM", e,
+                                         task.getLocation());
+            }
+            Map<Integer, Project> projects = new HashMap<Integer, Project>();
+            Project suiteProject = null;
+            String currentTest = null;
+            try {
+                while (true) {
+                    int type = in.readInt();
+                    switch (type) {
+                    case ForkedAntUnit.PROJECT:
+                        Project p = new Project();
+                        projects.put(Integer.valueOf(in.readInt()), p);
+                        n.setCurrentTestProject(p);
+                        break;
+                    case ForkedAntUnit.MESSAGE:
+                        Project source = projects.get(Integer.valueOf(in.readInt()));
+                        int priority = in.readInt();
+                        String message = ForkedAntUnit.readString(in);
+                        if (source != null) {
+                            source.log(message, priority);
+                        }
+                        break;
+                    case ForkedAntUnit.START_SUITE:
+                    case ForkedAntUnit.END_SUITE:
+                        Project sp = projects.get(Integer.valueOf(in.readInt()));
+                        if (sp == null) {
+                            sp = new Project();
+                        }
+                        String file = ForkedAntUnit.readString(in);
+                        String name = ForkedAntUnit.readString(in);
+                        if (name != null) {
+                            sp.setName(name);
+                        }
+                        for (Map.Entry<String, String> e
+                                 : ForkedAntUnit.readMap(in).entrySet()) {
+                            sp.setProperty(e.getKey(), e.getValue());
+                        }
+                        if (type == ForkedAntUnit.START_SUITE) {
+                            suiteProject = sp;
+                            n.startTestSuite(sp, file);
+                        } else {
+                            suiteProject = null;
+                            n.endTestSuite(sp, file);
+                        }
+                        break;
+                    case ForkedAntUnit.START_TEST:
+                        currentTest = ForkedAntUnit.readString(in);
+                        n.startTest(currentTest);
+                        break;
+                    case ForkedAntUnit.END_TEST:
+                        n.endTest(ForkedAntUnit.readString(in));
+                        currentTest = null;
+                        break;
+                    case ForkedAntUnit.FAILURE:
+                        String failed = ForkedAntUnit.readString(in);
+                        n.addFailure(failed, (AssertionFailedException)
+                                     ForkedAntUnit.readThrowable(in, true));
+                        break;
+                    case ForkedAntUnit.ERROR:
+                        String erred = ForkedAntUnit.readString(in);
+                        n.addError(erred, ForkedAntUnit.readThrowable(in, false));
+                        break;
+                    case ForkedAntUnit.DONE:
+                        usable = true;
+                        return;
+                    case ForkedAntUnit.ABORT:
+                        Throwable t = ForkedAntUnit.readThrowable(in, false);
+                        usable = true;
+                        if (t instanceof BuildException) {
+                            throw (BuildException) t;
+                        }
+                        throw new BuildException(t);
+                    default:
+                        throw new IOException("Unknown notification " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                BuildException died =
+                    new BuildException("Worker VM terminated unexpectedly while running "
+                                       + buildFile, e, task.getLocation());
+                if (suiteProject == null) {
+                    throw died;
+                }
+                if (currentTest != null) {
+                    n.addError(currentTest, died);
+                    n.endTest(currentTest);
+                }
+                n.endTestSuite(suiteProject, buildFile.getAbsolutePath());
+            } catch (IOException e) {
+                throw new BuildException("Failed to talk to worker VM", e,
+                                         task.getLocation());
+            }
+        }
+
+        void cancel() {
+            try {
+                synchronized (out) {
+                    out.writeInt(ForkedAntUnit.CANCEL);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // worker is gone already
+            }
+        }
+
+        void close() {
+            try {
+                synchronized (out) {
+                    out.writeInt(ForkedAntUnit.EXIT);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // worker is gone already
+            }
+            FileUtils.close(out);
+            try {
+                process.waitFor();
+                errPumper.join();
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+            FileUtils.close(in);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+
+/**
+ * PropertyHelper of a test project that sees the properties
+ * inherited from the &lt;antunit&gt; task without copying them.
+ *
+ * <p>The inherited properties are a snapshot shared by all test
+ * projects and act as a layer below the project's own properties:
+ * they are visible as long as the project doesn't set a property of
+ * the same name using {@link #setProperty(String, Object, boolean)
+ * setProperty} or a user property, and they can't be overridden by
+ * {@link #setNewProperty(String, Object) setNewProperty} - i.e. by
+ * the property task - just like properties that have been copied
+ * into the project.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class InheritedPropertyHelper extends PropertyHelper {
+
+    private final Map<String, String> inherited;
+
+    /**
+     * @param inherited the inherited properties, must not be
+     * modified while the helper is used
+     */
+    private InheritedPropertyHelper(Map<String, String> inherited) {
+        this.inherited = inherited;
+    }
+
+    /**
+     * Installs a helper for the given properties, must be invoked
+     * before the project's properties get initialized.
+     * @param p the test project
+     * @param inherited the inherited properties
+     */
+    static void install(Project p, Map<String, String> inherited) {
+        InheritedPropertyHelper helper = new InheritedPropertyHelper(inherited);
+        helper.setProject(p);
+        p.addReference(MagicNames.REFID_PROPERTY_HELPER, helper);
+    }
+
+    public Object getProperty(String name) {
+        Object value = super.getProperty(name);
+        return value != null || name == null ? value : inherited.get(name);
+    }
+
+    /**
+     * Also covers the deprecated variant with a namespace which
+     * delegates to this method.
+     */
+    public void setNewProperty(String name, Object value) {
+        if (isInheritedOnly(name)) {
+            ignoreOverride(name);
+        } else {
+            super.setNewProperty(name, value);
+        }
+    }
+
+    public Hashtable<String, Object> getProperties() {
+        Hashtable<String, Object> props = new Hashtable<String, Object>(inherited);
+        props.putAll(super.getProperties());
+        return props;
+    }
+
+    /**
+     * Overrides the method added by Ant 1.10.9.
+     */
+    public Set<String> getPropertyNames() {
+        Set<String> names = new LinkedHashSet<String>(inherited.keySet());
+        names.addAll(super.getProperties().keySet());
+        return names;
+    }
+
+    /**
+     * Whether the property only exists in the inherited layer.
+     */
+    private boolean isInheritedOnly(String name) {
+        return name != null && inherited.containsKey(name)
+            && super.getProperty(name) == null;
+    }
+
+    private void ignoreOverride(String name) {
+        getProject().log("Override ignored for property \"" + name + "\"",
+                         Project.MSG_VERBOSE);
+    }
+}
@@ -20,13 +20,27 @@
 
 package org.apache.ant.antunit;
 
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Collections;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.FileUtils;
 import org.apache.tools.ant.util.StringUtils;
 
 /**
@@ -36,14 +50,143 @@ import org.apache.tools.ant.util.StringUtils;
  * <p>This class captures all messages generated during the build and
  * adds itself as project reference to the project using the id
  * <code>ant.antunit.log</code>.</p>
+ *
+ * <p>Only the priority and the text of each message are kept and
+ * repeated messages share a single String instance.  Messages are
+ * captured without locking, so threads logging concurrently - from
+ * within &lt;parallel&gt; or multi-threaded tasks - don't contend on
+ * a monitor: each message claims the next sequence number and is
+ * stored in the slot of that number in fixed size blocks.  Readers
+ * look at all messages up to the first slot that hasn't been filled,
+ * yet, which gives them a consistent snapshot of the log in the
+ * order of the sequence numbers without copying anything.  The log
+ * of each level and merge mode is built once it is requested for the
+ * first time and only extended by the messages captured since when
+ * it is requested again.</p>
+ *
+ * <p>If a memory limit has been set, the oldest messages are written
+ * to a temporary file once the captured messages exceed the limit -
+ * a block is released once all of its messages have been written -
+ * and the logs are no longer cached, {@link #contains contains} and
+ * {@link #getLogReader getLogReader} read the log without holding
+ * it in memory as a whole.</p>
  */
 public class LogCapturer implements BuildListener {
     public static final String REFERENCE_ID = "ant.antunit.log";
 
-    private List<BuildEvent> events = Collections.synchronizedList(new LinkedList<BuildEvent>());
+    /**
+     * Number of messages per block, must be a power of two.
+     */
+    private static final int BLOCK_SIZE = 256;
+
+    /**
+     * Stored instead of null messages as an empty slot means the
+     * message hasn't been stored, yet.
+     */
+    private static final Object NULL_MESSAGE = new Object();
+
+    /**
+     * Number of recently captured messages that are looked up when
+     * a message is captured, must be a power of two.
+     */
+    private static final int RECENT_MESSAGES = 256;
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The next sequence number to assign.
+     */
+    private final AtomicInteger claimed = new AtomicInteger();
+
+    /**
+     * All slots below this sequence number are known to be filled.
+     */
+    private final AtomicInteger published = new AtomicInteger();
+
+    /**
+     * The blocks of the messages that haven't been written to the
+     * spill file.
+     */
+    private final AtomicReference<Blocks> blocks =
+        new AtomicReference<Blocks>(new Blocks(0, new Block[0]));
+
+    /**
+     * Recently captured messages indexed by their hash code.
+     *
+     * <p>Accessed without synchronization, a message that isn't seen
+     * by another thread simply isn't shared.</p>
+     */
+    private final String[] recent = new String[RECENT_MESSAGES];
+
+    /**
+     * Logs requested so far, two per level for the two merge modes.
+     */
+    private final LogView[] views = new LogView[2 * (Project.MSG_DEBUG + 1)];
+
+    /**
+     * Messages with a priority above this level are not captured.
+     */
+    private final int captureLevel;
+
+    /**
+     * Number of characters of captured messages to keep in memory,
+     * 0 for no limit.
+     */
+    private final int memoryLimit;
+
+    /**
+     * Number of characters of the messages in memory, only
+     * maintained if there is a memory limit.
+     */
+    private final AtomicLong memoryChars = new AtomicLong();
+
+    /**
+     * Guards the spill file, only one thread writes to it while the
+     * others go on capturing messages.
+     */
+    private final ReentrantLock spillLock = new ReentrantLock();
+
+    /**
+     * Number of messages that have been written to the spill file,
+     * they precede the messages in memory.
+     */
+    private volatile int spilled = 0;
+    private volatile File spillFile;
+    private DataOutputStream spillOut;
+    private volatile boolean spillFailed = false;
+    private volatile boolean discarded = false;
+
     private Project p;
 
     public LogCapturer(Project p) {
+        this(p, Project.MSG_DEBUG);
+    }
+
+    /**
+     * Captures the messages of the given level or more severe only.
+     * @param p the test project
+     * @param captureLevel the most detailed level to capture, one of
+     * the <code>Project.MSG_*</code> constants
+     * @since AntUnit 1.5
+     */
+    public LogCapturer(Project p, int captureLevel) {
+        this(p, captureLevel, 0);
+    }
+
+    /**
+     * Captures the messages of the given level or more severe only,
+     * keeping at most the given number of characters in memory.
+     * @param p the test project
+     * @param captureLevel the most detailed level to capture, one of
+     * the <code>Project.MSG_*</code> constants
+     * @param memoryLimit number of characters of captured messages
+     * to keep in memory before the oldest messages are written to a
+     * temporary file, 0 for no limit
+     * @since AntUnit 1.5
+     */
+    public LogCapturer(Project p, int captureLevel, int memoryLimit) {
+        this.captureLevel = captureLevel;
+        this.memoryLimit = memoryLimit;
         this.p = p;
         p.addBuildListener(this);
         p.addReference(REFERENCE_ID, this);
@@ -144,6 +287,228 @@ public class LogCapturer implements BuildListener {
         return getLog(Project.MSG_DEBUG, mergeLines);
     }
 
+    /**
+     * Whether the messages with <code>logLevel</code> or more severe
+     * contain the given text.
+     *
+     * <p>Unlike searching the result of {@link #getDebugLog} and
+     * friends this doesn't need to hold the whole log in memory if
+     * a memory limit has been set.</p>
+     * @param text the text to look for
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @return whether the log contains the text
+     * @since AntUnit 1.5
+     */
+    public boolean contains(String text, int logLevel, boolean mergeLines) {
+        return contains(text, logLevel, mergeLines, 0);
+    }
+
+    /**
+     * Whether the messages with <code>logLevel</code> or more severe
+     * captured after the given position contain the given text.
+     *
+     * <p>Only the messages captured after the position are looked
+     * at.</p>
+     * @param text the text to look for
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @param since a position returned by {@link #getPosition}
+     * @return whether the log contains the text
+     * @since AntUnit 1.5
+     */
+    public boolean contains(String text, int logLevel, boolean mergeLines, long since) {
+        checkLevel(logLevel);
+        if (memoryLimit <= 0 && since <= 0) {
+            return getView(logLevel, mergeLines).contains(text);
+        }
+        if (text.length() == 0) {
+            return true;
+        }
+        Reader r = new LogReader(logLevel, mergeLines, since);
+        try {
+            // the window keeps enough characters to find a match
+            // crossing the boundary of two reads
+            StringBuilder window = new StringBuilder();
+            char[] buffer = new char[Math.max(8192, text.length())];
+            int n;
+            while ((n = r.read(buffer)) != -1) {
+                window.append(buffer, 0, n);
+                if (window.indexOf(text) > -1) {
+                    return true;
+                }
+                if (window.length() >= text.length()) {
+                    window.delete(0, window.length() - text.length() + 1);
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new BuildException("Failed to read the captured log", e);
+        } finally {
+            FileUtils.close(r);
+        }
+    }
+
+    /**
+     * Reads the messages with <code>logLevel</code> or more severe
+     * captured so far.
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @return a reader for the log
+     * @since AntUnit 1.5
+     */
+    public Reader getLogReader(int logLevel, boolean mergeLines) {
+        return getLogReader(logLevel, mergeLines, 0);
+    }
+
+    /**
+     * Reads the messages with <code>logLevel</code> or more severe
+     * captured after the given position.
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @param since a position returned by {@link #getPosition}
+     * @return a reader for the log
+     * @since AntUnit 1.5
+     */
+    public Reader getLogReader(int logLevel, boolean mergeLines, long since) {
+        checkLevel(logLevel);
+        if (memoryLimit <= 0 && since <= 0) {
+            return new StringReader(getLog(logLevel, mergeLines));
+        }
+        return new LogReader(logLevel, mergeLines, since);
+    }
+
+    /**
+     * The number of bytes of the messages with <code>logLevel</code>
+     * or more severe captured so far when encoded in UTF-8.
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @return the size of the log in bytes
+     * @since AntUnit 1.5
+     */
+    public long getLogSize(int logLevel, boolean mergeLines) {
+        return getLogSize(logLevel, mergeLines, 0);
+    }
+
+    /**
+     * The number of bytes of the messages with <code>logLevel</code>
+     * or more severe captured after the given position when encoded
+     * in UTF-8.
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param mergeLines whether to merge messages into a single line
+     * or split them into multiple lines
+     * @param since a position returned by {@link #getPosition}
+     * @return the size of the log in bytes
+     * @since AntUnit 1.5
+     */
+    public long getLogSize(int logLevel, boolean mergeLines, long since) {
+        checkLevel(logLevel);
+        if (memoryLimit <= 0 && since <= 0) {
+            Utf8Length length = new Utf8Length();
+            length.add(getLog(logLevel, mergeLines));
+            return length.get();
+        }
+        LogReader r = new LogReader(logLevel, mergeLines, since);
+        try {
+            return r.utf8Length();
+        } catch (IOException e) {
+            throw new BuildException("Failed to read the captured log", e);
+        } finally {
+            FileUtils.close(r);
+        }
+    }
+
+    /**
+     * Passes the messages with <code>logLevel</code> or more severe
+     * captured after the given position to a handler, one at a time
+     * and in the order they have been captured.
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param since a position returned by {@link #getPosition}
+     * @param handler the handler
+     */
+    void scan(int logLevel, long since, MessageHandler handler) {
+        checkLevel(logLevel);
+        LogReader r = new LogReader(logLevel, true, since);
+        try {
+            while (r.nextMessage() && handler.message(r.current)) {
+                // the handler does the work
+            }
+        } catch (IOException e) {
+            throw new BuildException("Failed to read the captured log", e);
+        } finally {
+            FileUtils.close(r);
+        }
+    }
+
+    /**
+     * The messages with <code>logLevel</code> or more severe captured
+     * after the given position, each followed by a line separator.
+     *
+     * <p>Uses the cached log unless a memory limit has been set or
+     * a position is given.</p>
+     * @param logLevel one of the <code>Project.MSG_*</code> constants
+     * @param since a position returned by {@link #getPosition}
+     * @return the log
+     */
+    String getLines(int logLevel, long since) {
+        checkLevel(logLevel);
+        if (memoryLimit <= 0 && since <= 0) {
+            return getLog(logLevel, false);
+        }
+        return readLog(logLevel, false, since);
+    }
+
+    /**
+     * The number of messages captured so far, a position that marks
+     * the end of the log at the time of the invocation.
+     * @return the position
+     * @since AntUnit 1.5
+     */
+    public long getPosition() {
+        return published();
+    }
+
+    /**
+     * Stops capturing messages and deletes the messages written to
+     * disk, invoked once the test target and its tearDown have been
+     * completed.
+     */
+    void discard() {
+        discarded = true;
+        spillLock.lock();
+        try {
+            if (spillOut != null) {
+                FileUtils.close(spillOut);
+                spillOut = null;
+            }
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+        Project project = p;
+        if (project != null) {
+            project.removeBuildListener(this);
+            project.getReferences().remove(REFERENCE_ID);
+            p = null;
+        }
+    }
+
+    /**
+     * The most detailed level of the messages captured.
+     * @return one of the <code>Project.MSG_*</code> constants
+     * @since AntUnit 1.5
+     */
+    public int getCaptureLevel() {
+        return captureLevel;
+    }
+
     /**
      * Empty.
      */
@@ -179,24 +544,595 @@ public class LogCapturer implements BuildListener {
      * Record the message.
      */
     public void messageLogged(BuildEvent event) {
-        events.add(event);
+        if (event.getPriority() > captureLevel || discarded) {
+            return;
+        }
+        // priorities above MSG_DEBUG are never part of any log
+        int priority = Math.max(-1, Math.min(event.getPriority(), Project.MSG_DEBUG + 1));
+        String message = share(event.getMessage());
+        int seq = claimed.getAndIncrement();
+        Block b = block(seq);
+        int slot = seq & (BLOCK_SIZE - 1);
+        b.priorities[slot] = (byte) priority;
+        // publishes the priority as well
+        b.messages.set(slot, message == null ? NULL_MESSAGE : message);
+        if (memoryLimit > 0 && memoryChars.addAndGet(length(message)) > memoryLimit
+            && !spillFailed && spillLock.tryLock()) {
+            // if another thread is spilling it will take care of
+            // this message as well
+            try {
+                if (!discarded) {
+                    spill();
+                }
+            } finally {
+                spillLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The block holding the slot of a sequence number, adds blocks
+     * if necessary.
+     */
+    private Block block(int seq) {
+        int number = seq / BLOCK_SIZE;
+        while (true) {
+            Blocks current = blocks.get();
+            int index = number - current.first;
+            if (index < current.blocks.length) {
+                return current.blocks[index];
+            }
+            Block[] grown = new Block[Math.max(index + 1, 2 * current.blocks.length)];
+            System.arraycopy(current.blocks, 0, grown, 0, current.blocks.length);
+            for (int i = current.blocks.length; i < grown.length; i++) {
+                grown[i] = new Block();
+            }
+            // if another thread has been faster, use its blocks
+            blocks.compareAndSet(current, new Blocks(current.first, grown));
+        }
+    }
+
+    /**
+     * The number of messages captured without a gap, i.e. the first
+     * sequence number whose slot hasn't been filled, yet.
+     */
+    private int published() {
+        int known = published.get();
+        Blocks current = blocks.get();
+        int n = known;
+        while (current.isFilled(n)) {
+            n++;
+        }
+        while (known < n && !published.compareAndSet(known, n)) {
+            known = published.get();
+        }
+        return Math.max(known, n);
+    }
+
+    /**
+     * A consistent view of the messages captured so far.
+     */
+    private Snapshot snapshot() {
+        if (discarded) {
+            return new Snapshot(null, 0, null, 0);
+        }
+        // the order matters: the blocks read after the end has been
+        // determined contain all slots below it and the number of
+        // spilled messages read after the blocks is at least the
+        // first message of the blocks
+        int end = published();
+        Blocks current = blocks.get();
+        int sp = spilled;
+        return new Snapshot(current, sp, spillFile, Math.max(end, sp));
+    }
+
+    /**
+     * Writes the oldest messages to the spill file until half of the
+     * memory limit is used, must hold the spill lock.
+     *
+     * <p>Blocks whose messages have all been written are released,
+     * readers that are still using them hold their own reference.</p>
+     */
+    private void spill() {
+        try {
+            if (spillOut == null) {
+                File f = File.createTempFile("antunit", ".log");
+                spillOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f)));
+                spillFile = f;
+            }
+            int end = published();
+            Blocks current = blocks.get();
+            int n = spilled;
+            while (n < end && memoryChars.get() > memoryLimit / 2) {
+                spillOut.writeByte(current.priority(n));
+                String message = current.message(n);
+                if (message == null) {
+                    spillOut.writeInt(-1);
+                } else {
+                    byte[] bytes = message.getBytes(ENCODING);
+                    spillOut.writeInt(bytes.length);
+                    spillOut.write(bytes);
+                }
+                memoryChars.addAndGet(-length(message));
+                n++;
+            }
+            spillOut.flush();
+            spilled = n;
+            release(n / BLOCK_SIZE);
+        } catch (IOException e) {
+            // keep all further messages in memory, the spill file
+            // may be incomplete but only the first spilled messages
+            // are ever read
+            spillFailed = true;
+        }
+    }
+
+    /**
+     * Removes the blocks before the given block number.
+     */
+    private void release(int firstKept) {
+        while (true) {
+            Blocks current = blocks.get();
+            int count = Math.min(firstKept - current.first, current.blocks.length);
+            if (count <= 0) {
+                return;
+            }
+            Block[] kept = new Block[current.blocks.length - count];
+            System.arraycopy(current.blocks, count, kept, 0, kept.length);
+            if (blocks.compareAndSet(current, new Blocks(current.first + count, kept))) {
+                return;
+            }
+        }
+    }
+
+    private static int length(String message) {
+        return message == null ? 0 : message.length();
+    }
+
+    private static void checkLevel(int logLevel) {
+        if (logLevel < Project.MSG_ERR || logLevel > Project.MSG_DEBUG) {
+            throw new IllegalArgumentException("Unknown logLevel: " + logLevel);
+        }
+    }
+
+    /**
+     * The instance of an equal message captured recently, if any.
+     */
+    private String share(String message) {
+        if (message == null) {
+            return null;
+        }
+        int slot = message.hashCode() & (RECENT_MESSAGES - 1);
+        String r = recent[slot];
+        if (message.equals(r)) {
+            return r;
+        }
+        recent[slot] = message;
+        return message;
     }
 
     private String getLog(int minPriority, boolean mergeLines) {
+        if (memoryLimit > 0) {
+            return readLog(minPriority, mergeLines, 0);
+        }
+        return getView(minPriority, mergeLines).getText();
+    }
+
+    /**
+     * The view of the log for a level and merge mode, only used
+     * without a memory limit.
+     */
+    synchronized LogView getView(int minPriority, boolean mergeLines) {
+        int slot = 2 * minPriority + (mergeLines ? 0 : 1);
+        LogView view = views[slot];
+        if (view == null) {
+            view = views[slot] = new LogView(minPriority, mergeLines);
+        }
+        return view;
+    }
+
+    private String readLog(int minPriority, boolean mergeLines, long since) {
         StringBuilder sb = new StringBuilder();
-        for (BuildEvent buildEvent : new LinkedList<BuildEvent>(events)) {
-            append(sb, buildEvent, minPriority, mergeLines);
+        Reader r = new LogReader(minPriority, mergeLines, since);
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = r.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new BuildException("Failed to read the captured log", e);
+        } finally {
+            FileUtils.close(r);
         }
         return sb.toString();
     }
 
-    private static void append(StringBuilder sb, BuildEvent event,
-                               int minPriority, boolean mergeLines) {
-        if (event.getPriority() <= minPriority) {
-            sb.append(event.getMessage());
-            if (!mergeLines) {
-                sb.append(StringUtils.LINE_SEP);
+    private static void append(StringBuilder sb, String message, boolean mergeLines) {
+        sb.append(message);
+        if (!mergeLines) {
+            sb.append(StringUtils.LINE_SEP);
+        }
+    }
+
+    /**
+     * The log of a level and merge mode, built incrementally.
+     *
+     * <p>New messages are appended to the same buffer, the String
+     * returned by {@link #getText} is only created when somebody
+     * asks for it.</p>
+     */
+    class LogView {
+        private final int minPriority;
+        private final boolean mergeLines;
+
+        /**
+         * Number of messages looked at so far.
+         */
+        private int seen = 0;
+        private final StringBuilder buffer = new StringBuilder();
+
+        /**
+         * The content of the buffer as String if it has been
+         * requested since the last message has been appended.
+         */
+        private String text = "";
+
+        LogView(int minPriority, boolean mergeLines) {
+            this.minPriority = minPriority;
+            this.mergeLines = mergeLines;
+        }
+
+        /**
+         * The complete log.
+         */
+        synchronized String getText() {
+            update();
+            if (text == null) {
+                text = buffer.toString();
+            }
+            return text;
+        }
+
+        /**
+         * Whether the log contains the given text, searches the
+         * buffer without creating a String.
+         */
+        synchronized boolean contains(String s) {
+            update();
+            return buffer.indexOf(s) > -1;
+        }
+
+        /**
+         * The buffer holding the log, exposed for tests.
+         */
+        synchronized CharSequence getBuffer() {
+            update();
+            return buffer;
+        }
+
+        /**
+         * Appends the messages captured since the last invocation.
+         */
+        private void update() {
+            Snapshot snap = snapshot();
+            for (int i = seen; i < snap.end; i++) {
+                if (snap.priority(i) <= minPriority) {
+                    append(buffer, snap.message(i), mergeLines);
+                    text = null;
+                }
+            }
+            seen = Math.max(seen, snap.end);
+        }
+    }
+
+    /**
+     * Receives the messages passed on by {@link #scan scan}.
+     */
+    interface MessageHandler {
+        /**
+         * Handles a single message.
+         * @param message the message, "null" for null messages
+         * @return whether to go on with the next message
+         */
+        boolean message(String message);
+    }
+
+    /**
+     * Reads the messages captured until the reader has been created,
+     * first those from the spill file, then those in memory.
+     */
+    private class LogReader extends Reader {
+        private final int minPriority;
+        private final boolean mergeLines;
+        private final File file;
+        private int remainingSpilled;
+
+        /**
+         * Number of messages at the start of the spill file that are
+         * before the requested position.
+         */
+        private int skipSpilled = 0;
+        private DataInputStream in;
+        private final Snapshot snap;
+
+        /**
+         * Sequence number of the next message in memory.
+         */
+        private int next;
+        private String current = "";
+        private int offset = 0;
+
+        LogReader(int minPriority, boolean mergeLines, long since) {
+            this.minPriority = minPriority;
+            this.mergeLines = mergeLines;
+            snap = snapshot();
+            file = snap.file;
+            remainingSpilled = snap.spilled;
+            next = snap.spilled;
+            if (since >= remainingSpilled) {
+                next = (int) Math.min(snap.end, since);
+                remainingSpilled = 0;
+            } else if (since > 0) {
+                skipSpilled = (int) since;
+            }
+        }
+
+        public int read(char[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (offset == current.length()) {
+                if (!nextMessage()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, current.length() - offset);
+            current.getChars(offset, offset + n, buffer, off);
+            offset += n;
+            return n;
+        }
+
+        public void close() throws IOException {
+            remainingSpilled = 0;
+            next = snap.end;
+            closeSpillFile();
+        }
+
+        /**
+         * Counts the bytes of the remaining messages in UTF-8,
+         * consuming the reader.
+         *
+         * <p>The messages in the spill file are already encoded in
+         * UTF-8 and are skipped rather than decoded.</p>
+         */
+        long utf8Length() throws IOException {
+            Utf8Length length = new Utf8Length();
+            int sepLength = StringUtils.LINE_SEP.getBytes(ENCODING).length;
+            if (remainingSpilled > 0) {
+                openSpillFile();
+                for (; remainingSpilled > 0; remainingSpilled--) {
+                    int priority = in.readByte();
+                    int bytes = in.readInt();
+                    skipFully(bytes);
+                    if (priority <= minPriority) {
+                        // null messages are read as "null"
+                        length.addBytes(bytes < 0 ? 4 : bytes);
+                        if (!mergeLines) {
+                            length.addBytes(sepLength);
+                        }
+                    }
+                }
+                closeSpillFile();
+            }
+            for (; next < snap.end; next++) {
+                if (snap.priority(next) <= minPriority) {
+                    length.add(String.valueOf(snap.message(next)));
+                    if (!mergeLines) {
+                        length.add(StringUtils.LINE_SEP);
+                    }
+                }
+            }
+            return length.get();
+        }
+
+        /**
+         * Moves on to the next message of the requested level.
+         * @return false if there is none
+         */
+        private boolean nextMessage() throws IOException {
+            while (true) {
+                int priority;
+                String message;
+                if (remainingSpilled > 0) {
+                    openSpillFile();
+                    priority = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        message = null;
+                    } else {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        message = new String(bytes, ENCODING);
+                    }
+                    if (--remainingSpilled == 0) {
+                        closeSpillFile();
+                    }
+                } else if (next < snap.end) {
+                    priority = snap.priority(next);
+                    message = snap.message(next);
+                    next++;
+                } else {
+                    return false;
+                }
+                if (priority <= minPriority) {
+                    current = mergeLines ? String.valueOf(message)
+                        : message + StringUtils.LINE_SEP;
+                    offset = 0;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Opens the spill file if necessary and skips the messages
+         * before the requested position.
+         */
+        private void openSpillFile() throws IOException {
+            if (in != null) {
+                return;
+            }
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            for (; skipSpilled > 0; skipSpilled--, remainingSpilled--) {
+                in.readByte();
+                skipFully(in.readInt());
             }
         }
+
+        private void closeSpillFile() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+
+        private void skipFully(int bytes) throws IOException {
+            int skipped = 0;
+            while (skipped < bytes) {
+                int n = in.skipBytes(bytes - skipped);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                skipped += n;
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a sequence of Strings in UTF-8, lone
+     * surrogates count as one byte like the replacement character
+     * the encoder uses for them.
+     */
+    private static class Utf8Length {
+        private long bytes = 0;
+        private boolean highSurrogate = false;
+
+        void add(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (highSurrogate) {
+                    highSurrogate = false;
+                    if (Character.isLowSurrogate(c)) {
+                        bytes += 4;
+                        continue;
+                    }
+                    bytes++;
+                }
+                if (c < 0x80) {
+                    bytes++;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c)) {
+                    highSurrogate = true;
+                } else if (Character.isLowSurrogate(c)) {
+                    bytes++;
+                } else {
+                    bytes += 3;
+                }
+            }
+        }
+
+        /**
+         * Adds the length of text that has already been encoded.
+         */
+        void addBytes(long n) {
+            if (highSurrogate) {
+                highSurrogate = false;
+                bytes++;
+            }
+            bytes += n;
+        }
+
+        long get() {
+            return bytes + (highSurrogate ? 1 : 0);
+        }
+    }
+
+    /**
+     * Messages of consecutive sequence numbers.
+     */
+    private static class Block {
+        private final byte[] priorities = new byte[BLOCK_SIZE];
+
+        /**
+         * Setting a message publishes its priority.
+         */
+        private final AtomicReferenceArray<Object> messages =
+            new AtomicReferenceArray<Object>(BLOCK_SIZE);
+    }
+
+    /**
+     * The blocks in memory, never modified - new instances are
+     * created when blocks are added or released.
+     */
+    private static class Blocks {
+        /**
+         * Number of the first block, blocks before it have been
+         * released.
+         */
+        private final int first;
+        private final Block[] blocks;
+
+        Blocks(int first, Block[] blocks) {
+            this.first = first;
+            this.blocks = blocks;
+        }
+
+        /**
+         * Whether the message of a sequence number has been stored,
+         * messages of released blocks have been.
+         */
+        boolean isFilled(int seq) {
+            int index = seq / BLOCK_SIZE - first;
+            return index < 0
+                || index < blocks.length
+                && blocks[index].messages.get(seq & (BLOCK_SIZE - 1)) != null;
+        }
+
+        byte priority(int seq) {
+            return blocks[seq / BLOCK_SIZE - first].priorities[seq & (BLOCK_SIZE - 1)];
+        }
+
+        String message(int seq) {
+            Object m = blocks[seq / BLOCK_SIZE - first].messages.get(seq & (BLOCK_SIZE - 1));
+            return m == NULL_MESSAGE ? null : (String) m;
+        }
+    }
+
+    /**
+     * The log at a point in time: the messages in the spill file
+     * followed by those in memory up to the end.
+     */
+    private static class Snapshot {
+        private final Blocks blocks;
+        private final int spilled;
+        private final File file;
+        private final int end;
+
+        Snapshot(Blocks blocks, int spilled, File file, int end) {
+            this.blocks = blocks;
+            this.spilled = spilled;
+            this.file = file;
+            this.end = end;
+        }
+
+        byte priority(int seq) {
+            return blocks.priority(seq);
+        }
+
+        String message(int seq) {
+            return blocks.message(seq);
+        }
     }
 }
@@ -38,6 +38,7 @@ public class LogContains extends ProjectComponent implements Condition {
     private String text;
     private int logLevel = Project.MSG_INFO;
     private boolean mergeLines = true;
+    private String since;
 
     /**
      * Test the log shall contain.
@@ -65,6 +66,15 @@ public class LogContains extends ProjectComponent implements Condition {
         mergeLines = b;
     }
 
+    /**
+     * Only consult the log output produced after the given mark.
+     * @since AntUnit 1.5
+     * @param id the id of a {@link LogMark logmark}
+     */
+    public void setSince(String id) {
+        since = id;
+    }
+
     public boolean eval() {
         if (text == null) {
             throw new BuildException("the text attribute is required");
@@ -72,28 +82,11 @@ public class LogContains extends ProjectComponent implements Condition {
         Object o = getProject().getReference(LogCapturer.REFERENCE_ID);
         if (o instanceof LogCapturer) {
             LogCapturer c = (LogCapturer) o;
-            String log;
-            switch (logLevel) {
-            case Project.MSG_ERR:
-                log = c.getErrLog(mergeLines);
-                break;
-            case Project.MSG_WARN:
-                log = c.getWarnLog(mergeLines);
-                break;
-            case Project.MSG_INFO:
-                log = c.getInfoLog(mergeLines);
-                break;
-            case Project.MSG_VERBOSE:
-                log = c.getVerboseLog(mergeLines);
-                break;
-            case Project.MSG_DEBUG:
-                log = c.getDebugLog(mergeLines);
-                break;
-                
-            default:
+            if (logLevel < Project.MSG_ERR || logLevel > Project.MSG_DEBUG) {
                 throw new BuildException("Unknown logLevel: " + logLevel);
             }
-            return log.indexOf(text) > -1;
+            return c.contains(text, logLevel, mergeLines,
+                              LogMark.getPosition(getProject(), since));
         }
         return false;
     }
@@ -20,9 +20,15 @@
 
 package org.apache.ant.antunit;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.LogLevel;
@@ -30,11 +36,15 @@ import org.apache.tools.ant.types.Resource;
 
 /**
  * Exposes AntUnit log content as a (read-only) Resource.
+ *
+ * <p>The content is encoded in UTF-8 and streamed from the captured
+ * log a chunk at a time.</p>
  */
 public class LogContent extends Resource {
 
     private LogLevel level;
     private boolean mergeLines;
+    private String since;
 
     /**
      * Create a new LogContent resource.
@@ -89,6 +99,15 @@ public class LogContent extends Resource {
         mergeLines = b;
     }
 
+    /**
+     * Only expose the log output produced after the given mark.
+     * @since AntUnit 1.5
+     * @param id the id of a {@link LogMark logmark}
+     */
+    public final void setSince(String id) {
+        since = id;
+    }
+
     //inherit doc
     public InputStream getInputStream() throws IOException {
         if (isReference()) {
@@ -101,6 +120,16 @@ public class LogContent extends Resource {
         throw new IllegalStateException("antunit log unavailable");
     }
 
+    //inherit doc
+    public long getSize() {
+        if (isReference()) {
+            return ((Resource) getCheckedRef()).getSize();
+        }
+        LogCapturer lc = getLogCapturer();
+        return lc != null
+            ? lc.getLogSize(level.getLevel(), mergeLines, getSincePosition()) : 0;
+    }
+
     //inherit doc
     public boolean isExists() {
         return getLogCapturer() != null;
@@ -116,7 +145,12 @@ public class LogContent extends Resource {
         }
         LogContent olc = (LogContent) o;
         return olc.getProject() == getProject()
-                && olc.level.getLevel() == level.getLevel();
+                && olc.level.getLevel() == level.getLevel()
+                && (since == null ? olc.since == null : since.equals(olc.since));
+    }
+
+    private long getSincePosition() {
+        return LogMark.getPosition(getProject(), since);
     }
 
     private LogCapturer getLogCapturer() {
@@ -125,27 +159,80 @@ public class LogContent extends Resource {
     }
 
     private InputStream getLogStream(LogCapturer lc) {
-        String log = null;
-        switch (level.getLevel()) {
-        case Project.MSG_ERR:
-            log = lc.getErrLog(mergeLines);
-            break;
-        case Project.MSG_WARN:
-            log = lc.getWarnLog(mergeLines);
-            break;
-        case Project.MSG_INFO:
-            log = lc.getInfoLog(mergeLines);
-            break;
-        case Project.MSG_VERBOSE:
-            log = lc.getVerboseLog(mergeLines);
-            break;
-        case Project.MSG_DEBUG:
-            log = lc.getDebugLog(mergeLines);
-            break;
-        default:
+        int l = level.getLevel();
+        if (l < Project.MSG_ERR || l > Project.MSG_DEBUG) {
             throw new IllegalStateException("how possible?");
         }
-        return new ByteArrayInputStream(log.getBytes());
+        return new Utf8InputStream(lc.getLogReader(l, mergeLines,
+                                                   getSincePosition()));
+    }
+
+    /**
+     * Encodes the characters of a Reader in UTF-8 a chunk at a time.
+     */
+    private static class Utf8InputStream extends InputStream {
+        private final Reader reader;
+        private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(4096);
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        private boolean endOfInput = false;
+        private boolean flushed = false;
+
+        Utf8InputStream(Reader reader) {
+            this.reader = reader;
+            chars.flip();
+            bytes.flip();
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!bytes.hasRemaining()) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        /**
+         * Encodes the next chunk of characters.
+         * @return false if all characters have been encoded
+         */
+        private boolean fill() throws IOException {
+            if (flushed) {
+                return false;
+            }
+            bytes.clear();
+            if (!endOfInput) {
+                chars.compact();
+                if (reader.read(chars) == -1) {
+                    endOfInput = true;
+                }
+                chars.flip();
+            }
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                encoder.flush(bytes);
+                flushed = true;
+            }
+            bytes.flip();
+            return true;
+        }
     }
 
 }
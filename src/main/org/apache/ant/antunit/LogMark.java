@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Marks the current end of the log output of the current project so
+ * that log assertions can be restricted to the output produced
+ * after the mark.
+ *
+ * <p>The task must be given an id, log assertions refer to the mark
+ * by using that id as their <code>since</code> attribute.  Works in
+ * conjunction with {@link LogCapturer LogCapturer} and needs the
+ * context provided by AntUnit.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class LogMark extends Task {
+
+    private long position = -1;
+
+    public void execute() {
+        if (getRuntimeConfigurableWrapper().getId() == null) {
+            throw new BuildException("the id attribute is required");
+        }
+        Object o = getProject().getReference(LogCapturer.REFERENCE_ID);
+        position = o instanceof LogCapturer ? ((LogCapturer) o).getPosition() : 0;
+    }
+
+    /**
+     * The position of the log at the time the task has been
+     * executed.
+     * @return the position or -1 if the task hasn't been executed
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Resolves the since attribute of a log assertion.
+     * @param p the current project
+     * @param since id of a logmark, may be null
+     * @return the position of the mark, 0 if since is null or empty
+     */
+    static long getPosition(Project p, String since) {
+        if (since == null || since.length() == 0) {
+            return 0;
+        }
+        Object o = p.getReference(since);
+        if (!(o instanceof LogMark)) {
+            throw new BuildException(since + " doesn't refer to a logmark");
+        }
+        long position = ((LogMark) o).getPosition();
+        if (position < 0) {
+            throw new BuildException("logmark " + since + " has not been executed");
+        }
+        return position;
+    }
+}
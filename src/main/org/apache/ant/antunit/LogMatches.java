@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectComponent;
+import org.apache.tools.ant.taskdefs.Echo;
+import org.apache.tools.ant.taskdefs.condition.Condition;
+
+/**
+ * A condition that tests the log output of the current project
+ * against a regular expression.
+ *
+ * <p>By default the expression is matched against each line of the
+ * log individually, one message at a time, and evaluation stops at
+ * the first line that matches.  If acrossLines is true it is matched
+ * against the whole log instead, each message followed by a line
+ * separator - this needs the whole log in memory, even if a memory
+ * limit has been set for the {@link LogCapturer LogCapturer}.
+ * Compiled expressions are shared by all conditions of the VM.</p>
+ *
+ * <p>Works in conjunction with {@link LogCapturer LogCapturer} and
+ * needs the context provided by AntUnit.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class LogMatches extends ProjectComponent implements Condition {
+
+    private String pattern;
+    private String flags;
+    private int logLevel = Project.MSG_INFO;
+    private boolean acrossLines = false;
+    private String since;
+
+    /**
+     * The regular expression to look for, using the syntax of
+     * java.util.regex.
+     * @param p the expression
+     */
+    public void setPattern(String p) {
+        pattern = p;
+    }
+
+    /**
+     * Flags to compile the expression with, any combination of the
+     * characters "d" (UNIX_LINES), "i" (CASE_INSENSITIVE),
+     * "m" (MULTILINE), "s" (DOTALL), "u" (UNICODE_CASE) and
+     * "x" (COMMENTS).
+     * @param f the flags
+     */
+    public void setFlags(String f) {
+        flags = f;
+    }
+
+    /**
+     * minimal log priority to consult.
+     * @param echoLevel minimal log priority
+     */
+    public void setLevel(Echo.EchoLevel echoLevel) {
+        logLevel = echoLevel.getLevel();
+    }
+
+    /**
+     * Whether to match the expression against the whole log rather
+     * than each line individually.
+     * @param b whether to match across lines
+     */
+    public void setAcrossLines(boolean b) {
+        acrossLines = b;
+    }
+
+    /**
+     * Only consult the log output produced after the given mark.
+     * @param id the id of a {@link LogMark logmark}
+     */
+    public void setSince(String id) {
+        since = id;
+    }
+
+    public boolean eval() {
+        if (pattern == null) {
+            throw new BuildException("the pattern attribute is required");
+        }
+        final Pattern p = PatternCache.compile(pattern, flags);
+        Object o = getProject().getReference(LogCapturer.REFERENCE_ID);
+        if (!(o instanceof LogCapturer)) {
+            return false;
+        }
+        LogCapturer c = (LogCapturer) o;
+        long position = LogMark.getPosition(getProject(), since);
+        if (acrossLines) {
+            return p.matcher(c.getLines(logLevel, position)).find();
+        }
+        final boolean[] found = new boolean[1];
+        c.scan(logLevel, position, new LogCapturer.MessageHandler() {
+                public boolean message(String m) {
+                    found[0] = matchesLine(p, m);
+                    return !found[0];
+                }
+            });
+        return found[0];
+    }
+
+    /**
+     * Matches the expression against each line of a message, the
+     * anchors ^ and $ match at the bounds of the line.
+     */
+    static boolean matchesLine(Pattern p, String message) {
+        Matcher m = p.matcher(message);
+        int start = 0;
+        int length = message.length();
+        for (int i = 0; i < length; i++) {
+            char ch = message.charAt(i);
+            if (ch == '\n' || ch == '\r') {
+                if (m.region(start, i).find()) {
+                    return true;
+                }
+                if (ch == '\r' && i + 1 < length && message.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        return m.region(start, length).find();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches a sequence of characters for several texts at once.
+ *
+ * <p>Uses the algorithm by Aho and Corasick: the texts are combined
+ * into a single automaton that looks at each character exactly once,
+ * no matter how many texts are searched for.  The characters may be
+ * passed in in chunks, matches crossing the boundary of two chunks
+ * are found.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class MultiTextMatcher {
+
+    /**
+     * Transitions of the states, the trie of the texts.
+     */
+    private final List<Map<Character, Integer>> transitions =
+        new ArrayList<Map<Character, Integer>>();
+
+    /**
+     * State that represents the longest proper suffix of a state
+     * which is a prefix of one of the texts.
+     */
+    private final int[] failure;
+
+    /**
+     * Indices of the texts found when reaching a state.
+     */
+    private final int[][] output;
+
+    private final boolean[] found;
+    private int foundCount = 0;
+    private int state = 0;
+
+    /**
+     * @param texts the texts to look for
+     */
+    MultiTextMatcher(List<String> texts) {
+        found = new boolean[texts.size()];
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        addState(ends);
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            int s = 0;
+            for (int j = 0; j < text.length(); j++) {
+                Character c = Character.valueOf(text.charAt(j));
+                Integer next = transitions.get(s).get(c);
+                if (next == null) {
+                    next = Integer.valueOf(addState(ends));
+                    transitions.get(s).put(c, next);
+                }
+                s = next.intValue();
+            }
+            ends.get(s).add(Integer.valueOf(i));
+        }
+
+        int states = transitions.size();
+        failure = new int[states];
+        output = new int[states][];
+        output[0] = toArray(ends.get(0));
+        // breadth first so the failure states - which are closer to
+        // the root - are complete before they are needed
+        LinkedList<Integer> queue =
+            new LinkedList<Integer>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int s = queue.removeFirst().intValue();
+            ends.get(s).addAll(ends.get(failure[s]));
+            output[s] = toArray(ends.get(s));
+            for (Map.Entry<Character, Integer> e : transitions.get(s).entrySet()) {
+                int child = e.getValue().intValue();
+                failure[child] = next(failure[s], e.getKey());
+                queue.add(e.getValue());
+            }
+        }
+
+        // the empty text is found right away
+        mark(output[0]);
+    }
+
+    /**
+     * Looks for the texts in the next chunk of characters.
+     * @param chars the characters
+     */
+    void feed(String chars) {
+        for (int i = 0; i < chars.length() && !allFound(); i++) {
+            state = next(state, Character.valueOf(chars.charAt(i)));
+            mark(output[state]);
+        }
+    }
+
+    /**
+     * Whether the text of the given index has been found.
+     * @param index index of the text in the list passed to the
+     * constructor
+     * @return whether the text has been found
+     */
+    boolean isFound(int index) {
+        return found[index];
+    }
+
+    /**
+     * Whether all texts have been found.
+     * @return whether all texts have been found
+     */
+    boolean allFound() {
+        return foundCount == found.length;
+    }
+
+    private int addState(List<List<Integer>> ends) {
+        transitions.add(new HashMap<Character, Integer>());
+        ends.add(new ArrayList<Integer>());
+        return transitions.size() - 1;
+    }
+
+    /**
+     * The state reached from the given one by consuming a character.
+     */
+    private int next(int s, Character c) {
+        while (true) {
+            Integer n = transitions.get(s).get(c);
+            if (n != null) {
+                return n.intValue();
+            }
+            if (s == 0) {
+                return 0;
+            }
+            s = failure[s];
+        }
+    }
+
+    private void mark(int[] indices) {
+        for (int i = 0; i < indices.length; i++) {
+            if (!found[indices[i]]) {
+                found[indices[i]] = true;
+                foundCount++;
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i).intValue();
+        }
+        return a;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Compiled regular expressions shared by all log assertions of the
+ * VM.
+ *
+ * <p>Keeps the most recently used patterns so that assertions
+ * evaluated again and again - in each test target, in loops or by
+ * many test files - don't compile the same expression each
+ * time.</p>
+ *
+ * @since AntUnit 1.5
+ */
+final class PatternCache {
+
+    /**
+     * Maximum number of patterns to keep.
+     */
+    private static final int MAX_SIZE = 256;
+
+    private static final String FLAGS = "dimsux";
+
+    private static final int[] FLAG_VALUES = new int[] {
+        Pattern.UNIX_LINES, Pattern.CASE_INSENSITIVE, Pattern.MULTILINE,
+        Pattern.DOTALL, Pattern.UNICODE_CASE, Pattern.COMMENTS
+    };
+
+    private static final Map<String, Pattern> CACHE =
+        new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> e) {
+                return size() > MAX_SIZE;
+            }
+        };
+
+    private PatternCache() {
+    }
+
+    /**
+     * The compiled pattern.
+     * @param regex the regular expression
+     * @param flags any combination of the characters "d" (UNIX_LINES),
+     * "i" (CASE_INSENSITIVE), "m" (MULTILINE), "s" (DOTALL),
+     * "u" (UNICODE_CASE) and "x" (COMMENTS), may be null
+     * @return the pattern
+     * @throws BuildException if the flags or the expression are invalid
+     */
+    static Pattern compile(String regex, String flags) {
+        int f = parseFlags(flags);
+        String key = f + "/" + regex;
+        synchronized (CACHE) {
+            Pattern p = CACHE.get(key);
+            if (p != null) {
+                return p;
+            }
+        }
+        Pattern p;
+        try {
+            p = Pattern.compile(regex, f);
+        } catch (PatternSyntaxException e) {
+            throw new BuildException("invalid pattern " + regex, e);
+        }
+        synchronized (CACHE) {
+            CACHE.put(key, p);
+        }
+        return p;
+    }
+
+    private static int parseFlags(String flags) {
+        int f = 0;
+        if (flags != null) {
+            for (int i = 0; i < flags.length(); i++) {
+                int index = FLAGS.indexOf(flags.charAt(i));
+                if (index < 0) {
+                    throw new BuildException("Unknown flag '" + flags.charAt(i)
+                                             + "' in " + flags);
+                }
+                f |= FLAG_VALUES[index];
+            }
+        }
+        return f;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.ComponentHelper;
+import org.apache.tools.ant.ExtensionPoint;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.UnknownElement;
+import org.apache.tools.ant.helper.ProjectHelper2;
+import org.apache.tools.ant.taskdefs.ImportTask;
+
+/**
+ * The parsed model of a build file that configures fresh projects
+ * without parsing the build file again.
+ *
+ * <p>The template is recorded while a project is configured the
+ * normal way.  It keeps the targets of the build file - including
+ * those of imported files - and the top-level tasks in the order
+ * they have been executed.  Configuring a new project copies the
+ * targets and executes copies of the top-level tasks again, so the
+ * new project gets the same properties, references and definitions
+ * it would have got from parsing the build file.</p>
+ *
+ * <p>Only build files read by Ant's default ProjectHelper can be
+ * recorded.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class ProjectTemplate {
+
+    private final String name;
+    private final String defaultTarget;
+    private final String description;
+    private final File baseDir;
+
+    /**
+     * ant.file.* properties set by the ProjectHelper.
+     */
+    private final Map<String, String> fileProperties = new HashMap<String, String>();
+
+    /**
+     * ids the project has been registered as reference under.
+     */
+    private final List<String> projectIds = new ArrayList<String>();
+
+    /**
+     * Unused copies of all targets of the project by name, some
+     * targets may be registered under more than one name.
+     */
+    private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+
+    /**
+     * Unconfigured copies of the top-level tasks of the build file and
+     * all imported files in execution order, without the import tasks
+     * themselves.
+     */
+    private final List<UnknownElement> topLevelTasks;
+
+    private ProjectTemplate(Project p, List<UnknownElement> topLevelTasks) {
+        name = p.getName();
+        defaultTarget = p.getDefaultTarget();
+        description = p.getDescription();
+        baseDir = p.getBaseDir();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> props = p.getProperties();
+        for (Map.Entry<String, Object> e : props.entrySet()) {
+            if (e.getKey().startsWith(MagicNames.ANT_FILE + ".")
+                && e.getValue() instanceof String) {
+                fileProperties.put(e.getKey(), (String) e.getValue());
+            }
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> refs = p.getReferences();
+        for (Map.Entry<String, Object> e : refs.entrySet()) {
+            if (e.getValue() == p) {
+                projectIds.add(e.getKey());
+            }
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Target> projectTargets = p.getTargets();
+        copyTargets(projectTargets, targets, p);
+        this.topLevelTasks = topLevelTasks;
+    }
+
+    /**
+     * Configures the project by parsing the build file and records a
+     * template while doing so.
+     * @param p the project to configure
+     * @param buildFile the build file to parse
+     * @return the template or null if the project can not be
+     * recorded
+     * @throws BuildException if the build file can not be parsed
+     */
+    public static ProjectTemplate configureProject(Project p, File buildFile)
+        throws BuildException {
+        TopLevelTaskRecorder recorder = new TopLevelTaskRecorder();
+        p.addBuildListener(recorder);
+        try {
+            ProjectHelper.configureProject(p, buildFile);
+        } finally {
+            p.removeBuildListener(recorder);
+        }
+        if (!(p.getReference(ProjectHelper.PROJECTHELPER_REFERENCE)
+              instanceof ProjectHelper2)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Target> projectTargets = p.getTargets();
+        for (Target t : projectTargets.values()) {
+            for (Task task : t.getTasks()) {
+                if (!(task instanceof UnknownElement)) {
+                    return null;
+                }
+            }
+        }
+        List<UnknownElement> topLevelTasks = new ArrayList<UnknownElement>();
+        for (UnknownElement task : recorder.tasks) {
+            if (!isImport(p, task)) {
+                topLevelTasks.add(task);
+            }
+        }
+        return new ProjectTemplate(p, topLevelTasks);
+    }
+
+    /**
+     * Configures a fresh project from this template.
+     * @param p the project to configure, it must have been
+     * initialized the same way as the project this template has been
+     * recorded from
+     * @throws BuildException if one of the top-level tasks fails
+     */
+    public void configureProject(Project p) throws BuildException {
+        p.addReference(ProjectHelper.PROJECTHELPER_REFERENCE,
+                       ProjectHelper.getProjectHelper());
+        if (baseDir != null) {
+            p.setBaseDir(baseDir);
+        }
+        if (name != null) {
+            p.setName(name);
+        }
+        if (defaultTarget != null) {
+            p.setDefault(defaultTarget);
+        }
+        if (description != null) {
+            p.setDescription(description);
+        }
+        for (Map.Entry<String, String> e : fileProperties.entrySet()) {
+            p.setNewProperty(e.getKey(), e.getValue());
+        }
+        for (String id : projectIds) {
+            p.addReference(id, p);
+        }
+
+        Map<String, Target> projectTargets = new LinkedHashMap<String, Target>();
+        copyTargets(targets, projectTargets, p);
+        for (Map.Entry<String, Target> e : projectTargets.entrySet()) {
+            p.addOrReplaceTarget(e.getKey(), e.getValue());
+        }
+
+        Target implicitTarget = new Target();
+        implicitTarget.setName("");
+        implicitTarget.setProject(p);
+        for (UnknownElement task : topLevelTasks) {
+            UnknownElement copy = task.copy(p);
+            copy.setOwningTarget(implicitTarget);
+            copy.perform();
+        }
+    }
+
+    /**
+     * Whether the task is an import or include task.
+     */
+    private static boolean isImport(Project p, UnknownElement task) {
+        Class<?> c = ComponentHelper.getComponentHelper(p)
+            .getComponentClass(ProjectHelper.genComponentName(task.getNamespace(),
+                                                              task.getTag()));
+        return c != null && ImportTask.class.isAssignableFrom(c);
+    }
+
+    /**
+     * Copies targets preserving targets registered under more than
+     * one name.
+     */
+    private static void copyTargets(Map<String, Target> from, Map<String, Target> to,
+                                    Project p) {
+        Map<Target, Target> copies = new IdentityHashMap<Target, Target>();
+        for (Map.Entry<String, Target> e : from.entrySet()) {
+            Target copy = copies.get(e.getValue());
+            if (copy == null) {
+                copy = copy(e.getValue(), p);
+                copies.put(e.getValue(), copy);
+            }
+            to.put(e.getKey(), copy);
+        }
+    }
+
+    /**
+     * Creates a copy of a target with unconfigured copies of its
+     * tasks.
+     */
+    private static Target copy(Target t, Project p) {
+        Target copy = t instanceof ExtensionPoint ? new ExtensionPoint() : new Target();
+        copy.setName(t.getName());
+        copy.setProject(p);
+        copy.setLocation(t.getLocation());
+        copy.setDescription(t.getDescription());
+        copy.setIf(t.getIf());
+        copy.setUnless(t.getUnless());
+        for (Enumeration<String> deps = t.getDependencies(); deps.hasMoreElements();) {
+            copy.addDependency(deps.nextElement());
+        }
+        for (Task task : t.getTasks()) {
+            UnknownElement child = ((UnknownElement) task).copy(p);
+            child.setOwningTarget(copy);
+            copy.addTask(child);
+        }
+        return copy;
+    }
+
+    /**
+     * Collects copies of the tasks executed directly inside of
+     * implicit targets, i.e. the top-level tasks of the parsed files.
+     * The copies are taken before the tasks get configured.
+     */
+    private static class TopLevelTaskRecorder implements BuildListener {
+        private final List<UnknownElement> tasks = new ArrayList<UnknownElement>();
+
+        public void taskStarted(BuildEvent event) {
+            Target t = event.getTarget();
+            if (t != null && "".equals(t.getName())
+                && event.getTask() instanceof UnknownElement
+                && Arrays.asList(t.getTasks()).contains(event.getTask())) {
+                tasks.add(((UnknownElement) event.getTask()).copy(event.getProject()));
+            }
+        }
+
+        public void buildStarted(BuildEvent event) {}
+        public void buildFinished(BuildEvent event) {}
+        public void targetStarted(BuildEvent event) {}
+        public void targetFinished(BuildEvent event) {}
+        public void taskFinished(BuildEvent event) {}
+        public void messageLogged(BuildEvent event) {}
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * An AntUnitListener that records all notifications of a single test
+ * suite so they can be replayed to the real listeners later.
+ *
+ * <p>Used by &lt;antunit&gt; when build files are run concurrently:
+ * each suite runs against its own recorder and the recorded events
+ * are delivered to the configured listeners one suite at a time, so
+ * listeners never see interleaved suites.  Log messages of the test
+ * projects are recorded as well - only their priority and text - and
+ * delivered to whatever BuildListeners the real listeners attach in
+ * {@link AntUnitListener#setCurrentTestProject
+ * setCurrentTestProject}.  Once the real listeners haven't attached
+ * any BuildListener to a test project no further messages are
+ * recorded.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class RecordingAntUnitListener implements AntUnitListener {
+
+    /**
+     * Recorded events in the order they occured.
+     */
+    private final List<Event> events =
+        Collections.synchronizedList(new ArrayList<Event>());
+
+    /**
+     * Whether the real listeners want to see log messages, may be
+     * shared by several recorders.
+     */
+    private final AtomicBoolean recordMessages;
+
+    /**
+     * BuildListeners the real listeners attached to test projects
+     * during replay, only defined while replaying.
+     */
+    private Map<Project, List<BuildListener>> sinks;
+
+    /**
+     * Listeners events are passed to as they occur, only defined
+     * once {@link #forward forward} has been invoked.
+     */
+    private List<AntUnitListener> forwardTo;
+
+    /**
+     * Creates a recorder for all log messages.
+     */
+    public RecordingAntUnitListener() {
+        this(new AtomicBoolean(true));
+    }
+
+    /**
+     * Creates a recorder.
+     * @param recordMessages whether log messages should be recorded,
+     * set to false by the first recorder that sees the real listeners
+     * not attach any BuildListener to a test project
+     */
+    RecordingAntUnitListener(AtomicBoolean recordMessages) {
+        this.recordMessages = recordMessages;
+    }
+
+    /**
+     * Delivers all recorded events to the given listeners with the
+     * same pauses between them as when they have been recorded.
+     * @param listeners the listeners to notify
+     */
+    public void replay(List<AntUnitListener> listeners) {
+        List<Event> recorded;
+        synchronized (events) {
+            recorded = new ArrayList<Event>(events);
+        }
+        sinks = new IdentityHashMap<Project, List<BuildListener>>();
+        ReplayPacer pacer = new ReplayPacer();
+        try {
+            for (Event e : recorded) {
+                pacer.await(e.time);
+                e.replay(listeners);
+            }
+        } finally {
+            for (Map.Entry<Project, List<BuildListener>> entry : sinks.entrySet()) {
+                for (BuildListener l : entry.getValue()) {
+                    entry.getKey().removeBuildListener(l);
+                }
+            }
+            sinks = null;
+        }
+    }
+
+    /**
+     * Delivers all events recorded so far to the given listeners and
+     * passes all further events on to them as they occur.
+     *
+     * <p>Used by &lt;antunit&gt; for build files that have been read
+     * ahead: the notifications of creating the first project are
+     * recorded and the listeners see them once the build file's
+     * tests are about to start.  They are passed on without any
+     * pauses as the events keep coming in while they are
+     * delivered.</p>
+     * @param listeners the listeners to notify
+     */
+    void forward(List<AntUnitListener> listeners) {
+        synchronized (events) {
+            sinks = new IdentityHashMap<Project, List<BuildListener>>();
+            for (Event e : events) {
+                e.replay(listeners);
+            }
+            events.clear();
+            forwardTo = listeners;
+        }
+    }
+
+    /**
+     * Empty, the real listeners already know their parent task.
+     */
+    public void setParentTask(Task t) {
+    }
+
+    /**
+     * Records the project and starts recording its log messages.
+     */
+    public void setCurrentTestProject(final Project p) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                @SuppressWarnings("unchecked")
+                List<BuildListener> before = p.getBuildListeners();
+                for (AntUnitListener al : listeners) {
+                    al.setCurrentTestProject(p);
+                }
+                @SuppressWarnings("unchecked")
+                List<BuildListener> added = p.getBuildListeners();
+                added.removeAll(before);
+                if (added.isEmpty()) {
+                    recordMessages.set(false);
+                } else {
+                    sinks.put(p, added);
+                }
+            }
+        });
+        p.addBuildListener(new MessageRecorder(p));
+    }
+
+    public void startTestSuite(final Project testProject, final String buildFile) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.startTestSuite(testProject, buildFile);
+                }
+            }
+        });
+    }
+
+    public void endTestSuite(final Project testProject, final String buildFile) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.endTestSuite(testProject, buildFile);
+                }
+            }
+        });
+    }
+
+    public void startTest(final String target) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.startTest(target);
+                }
+            }
+        });
+    }
+
+    public void endTest(final String target) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.endTest(target);
+                }
+            }
+        });
+    }
+
+    public void addFailure(final String target, final AssertionFailedException ae) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.addFailure(target, ae);
+                }
+            }
+        });
+    }
+
+    public void addError(final String target, final Throwable ae) {
+        record(new Event() {
+            void replay(List<AntUnitListener> listeners) {
+                for (AntUnitListener al : listeners) {
+                    al.addError(target, ae);
+                }
+            }
+        });
+    }
+
+    private void record(Event e) {
+        synchronized (events) {
+            if (forwardTo != null) {
+                e.replay(forwardTo);
+            } else {
+                events.add(e);
+            }
+        }
+    }
+
+    /**
+     * A recorded notification.
+     */
+    private abstract static class Event {
+        private final long time = System.currentTimeMillis();
+
+        abstract void replay(List<AntUnitListener> listeners);
+    }
+
+    /**
+     * Records log messages of a test project.
+     */
+    private class MessageRecorder implements BuildListener {
+        private final Project project;
+
+        MessageRecorder(Project project) {
+            this.project = project;
+        }
+
+        public void buildStarted(BuildEvent event) {}
+        public void buildFinished(BuildEvent event) {}
+        public void targetStarted(BuildEvent event) {}
+        public void targetFinished(BuildEvent event) {}
+        public void taskStarted(BuildEvent event) {}
+        public void taskFinished(BuildEvent event) {}
+        public void messageLogged(BuildEvent event) {
+            final int priority = event.getPriority();
+            if (!recordMessages.get()) {
+                return;
+            }
+            final String message = event.getMessage();
+            record(new Event() {
+                void replay(List<AntUnitListener> listeners) {
+                    List<BuildListener> targets = sinks.get(project);
+                    if (targets != null) {
+                        BuildEvent replayed = new BuildEvent(project);
+                        replayed.setMessage(message, priority);
+                        for (BuildListener l : targets) {
+                            l.messageLogged(replayed);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
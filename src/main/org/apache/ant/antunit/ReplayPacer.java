@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+/**
+ * Reproduces the pauses between recorded notifications while they
+ * are replayed.
+ *
+ * <p>Listeners measure durations with the system clock, notifications
+ * passed on back to back would make all tests look as if they took
+ * no time at all.</p>
+ *
+ * @since AntUnit 1.5
+ */
+final class ReplayPacer {
+
+    /**
+     * Time the first replayed notification has been recorded at, -1
+     * before the first one.
+     */
+    private long firstRecorded = -1;
+
+    /**
+     * Time the first notification has been replayed at.
+     */
+    private long replayStart;
+
+    /**
+     * Waits until as much time has passed since the first replayed
+     * notification as had passed when this one was recorded.
+     * @param recorded the time the notification has been recorded at
+     */
+    void await(long recorded) {
+        long now = System.currentTimeMillis();
+        if (firstRecorded < 0) {
+            firstRecorded = recorded;
+            replayStart = now;
+            return;
+        }
+        long wait = (recorded - firstRecorded) - (now - replayStart);
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.AntClassLoader;
+import org.apache.tools.ant.ComponentHelper;
+import org.apache.tools.ant.MagicNames;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.types.Path;
+
+/**
+ * Core loader of test projects that is shared by all antunit tasks
+ * using the same classpath inside a VM, together with the antlib
+ * definitions loaded from it.
+ *
+ * <p>Loaders are cached by the list of classpath entries and reused
+ * as long as none of the entries has changed its modification time
+ * or size.  Each antunit task using a loader has to {@link #release
+ * release} it when it is done, the files opened by the loader are
+ * closed once the last user has released it.</p>
+ *
+ * <p>The definitions of antlib namespaces used by test projects are
+ * loaded once into a separate project that is never used to run any
+ * target and are passed on to new test projects the same way Ant
+ * passes the definitions of a project to the projects created by
+ * &lt;ant&gt;.  Definitions made by the test projects themselves are
+ * never shared.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class SharedCoreLoader {
+
+    private static final Map<String, SharedCoreLoader> LOADERS =
+        new HashMap<String, SharedCoreLoader>();
+
+    private final String fingerprint;
+    private final AntClassLoader loader;
+
+    /**
+     * Holds the definitions of all antlib namespaces used so far.
+     */
+    private final Project definitions;
+    private final ComponentHelper definitionsHelper;
+    private final Set<String> knownNamespaces = new HashSet<String>();
+
+    /**
+     * Number of tasks that have obtained the loader but not released
+     * it, guarded by LOADERS.
+     */
+    private int users = 0;
+
+    private SharedCoreLoader(String fingerprint, Path classpath) {
+        this.fingerprint = fingerprint;
+        loader = AntClassLoader.newAntClassLoader(Project.class.getClassLoader(),
+                                                  null, classpath, true);
+        definitions = new Project();
+        definitions.setCoreLoader(loader);
+        definitions.initProperties();
+        definitionsHelper = ComponentHelper.getComponentHelper(definitions);
+    }
+
+    /**
+     * The shared loader for a classpath, created if there is none
+     * or the classpath has changed.
+     *
+     * <p>The caller must invoke {@link #release} once it doesn't
+     * need the loader anymore.</p>
+     * @param classpath the classpath of the test projects
+     * @return the shared loader
+     */
+    static SharedCoreLoader forClasspath(Path classpath) {
+        String[] elements = classpath.list();
+        StringBuilder key = new StringBuilder();
+        StringBuilder fingerprint = new StringBuilder();
+        for (String element : elements) {
+            File f = new File(element);
+            key.append(f.getAbsolutePath()).append(File.pathSeparatorChar);
+            fingerprint.append(f.lastModified()).append('/').append(f.length())
+                .append(File.pathSeparatorChar);
+        }
+        synchronized (LOADERS) {
+            SharedCoreLoader l = LOADERS.get(key.toString());
+            if (l == null || !l.fingerprint.equals(fingerprint.toString())) {
+                // a stale loader still in use is closed by its last
+                // user, an unused one has been closed already
+                l = new SharedCoreLoader(fingerprint.toString(), classpath);
+                LOADERS.put(key.toString(), l);
+            }
+            l.users++;
+            return l;
+        }
+    }
+
+    /**
+     * Signals that the caller of {@link #forClasspath} is done with
+     * the loader, the last user closes the files opened by it.
+     *
+     * <p>A loader that is still current will open the files again
+     * when it is used by the next antunit task.</p>
+     */
+    void release() {
+        synchronized (LOADERS) {
+            if (--users == 0) {
+                loader.cleanup();
+            }
+        }
+    }
+
+    /**
+     * Makes a new test project use the loader and the antlib
+     * definitions loaded so far, must be invoked before the project
+     * inherits the definitions of its parent so they take
+     * precedence.
+     * @param p the test project
+     */
+    synchronized void initProject(Project p) {
+        p.setCoreLoader(loader);
+        if (!knownNamespaces.isEmpty()) {
+            ComponentHelper.getComponentHelper(p).initSubProject(definitionsHelper);
+        }
+    }
+
+    /**
+     * Loads the antlib namespaces a test project has used into the
+     * shared definitions.
+     * @param p a test project
+     */
+    void learn(Project p) {
+        List<String> names;
+        Map<String, ?> types = ComponentHelper.getComponentHelper(p).getAntTypeTable();
+        synchronized (types) {
+            names = new ArrayList<String>(types.keySet());
+        }
+        synchronized (this) {
+            for (String name : names) {
+                String uri = ProjectHelper.extractUriFromComponentName(name);
+                if (uri.startsWith(MagicNames.ANTLIB_PREFIX)
+                    && knownNamespaces.add(uri)) {
+                    definitions.log("Sharing definitions of " + uri,
+                                    Project.MSG_DEBUG);
+                    // makes the ComponentHelper load the antlib
+                    definitionsHelper.getDefinition(ProjectHelper
+                                                    .genComponentName(uri, "antlib"));
+                }
+            }
+        }
+    }
+}
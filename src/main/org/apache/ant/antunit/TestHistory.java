@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * The outcome and duration of the last run of build files and their
+ * test targets.
+ *
+ * <p>The history is stored as a UTF-8 encoded text file with one
+ * line per build file or test target.  Each line holds the outcome
+ * ("passed", "failed" or "error"), the duration in milliseconds, the
+ * path of the build file relative to the base directory and the name
+ * of the target separated by tabs; the target name is empty for the
+ * line of the build file itself.  Build files use the same key as
+ * {@link TestShards} so processes running different shards from
+ * different directories can share the history file.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class TestHistory {
+
+    static final String PASSED = "passed";
+    static final String FAILED = "failed";
+    static final String ERROR = "error";
+
+    private static final char SEPARATOR = '\t';
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    /**
+     * Directory the build file keys are relative to.
+     */
+    private final File baseDir;
+
+    /**
+     * Entries by build file and target, the entry of the build file
+     * itself uses the empty string as target name.
+     */
+    private final Map<String, Map<String, Entry>> entries =
+        new LinkedHashMap<String, Map<String, Entry>>();
+
+    /**
+     * @param baseDir directory build file keys are relative to
+     */
+    private TestHistory(File baseDir) {
+        this.baseDir = FILE_UTILS.normalize(baseDir.getAbsolutePath());
+    }
+
+    /**
+     * Reads the history from a file, an empty history is returned if
+     * the file doesn't exist.
+     * @param f the history file
+     * @param baseDir directory build file keys are relative to
+     * @return the history
+     * @throws BuildException if the file can not be read
+     */
+    static TestHistory load(File f, File baseDir) throws BuildException {
+        TestHistory h = new TestHistory(baseDir);
+        if (!f.isFile()) {
+            return h;
+        }
+        Reader r = null;
+        try {
+            r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+            h.read(r);
+        } catch (IOException e) {
+            throw new BuildException("Failed to read test history " + f, e);
+        } finally {
+            FileUtils.close(r);
+        }
+        return h;
+    }
+
+    /**
+     * Writes the history to a file.
+     * @param f the history file
+     * @throws BuildException if the file can not be written
+     */
+    synchronized void save(File f) throws BuildException {
+        Writer w = null;
+        try {
+            File parent = f.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),
+                                                          "UTF-8"));
+            write(w);
+        } catch (IOException e) {
+            throw new BuildException("Failed to write test history " + f, e);
+        } finally {
+            FileUtils.close(w);
+        }
+    }
+
+    /**
+     * Creates a history from the result of {@link #toString}.
+     * @param s the String representation of the history
+     * @return the history
+     */
+    static TestHistory valueOf(String s) {
+        try {
+            BufferedReader r = new BufferedReader(new StringReader(s));
+            TestHistory h = new TestHistory(new File(r.readLine()));
+            h.read(r);
+            return h;
+        } catch (IOException e) {
+            // can't happen
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * The history as text, used to pass it to forked VMs: the base
+     * directory followed by the history in the format of the
+     * history file.
+     */
+    public synchronized String toString() {
+        StringWriter w = new StringWriter();
+        try {
+            w.write(baseDir.getPath());
+            w.write('\n');
+            write(w);
+        } catch (IOException e) {
+            // can't happen
+            throw new BuildException(e);
+        }
+        return w.toString();
+    }
+
+    /**
+     * A history that only contains the entries of a single build file.
+     * @param buildFile the build file
+     * @return the history of the build file
+     */
+    synchronized TestHistory forBuildFile(File buildFile) {
+        TestHistory h = new TestHistory(baseDir);
+        String key = key(buildFile);
+        Map<String, Entry> m = entries.get(key);
+        if (m != null) {
+            h.entries.put(key, new LinkedHashMap<String, Entry>(m));
+        }
+        return h;
+    }
+
+    /**
+     * Sorts build files according to their history, the relative
+     * order of build files that compare equal is kept.
+     * @param files the build files
+     * @param failedFirst whether failed build files should come
+     * first rather than the build files that took longest
+     * @return the sorted build files
+     */
+    synchronized List<File> sortBuildFiles(List<File> files, boolean failedFirst) {
+        Map<File, Entry> known = new HashMap<File, Entry>();
+        for (File f : files) {
+            known.put(f, get(key(f), ""));
+        }
+        return sort(files, known, failedFirst);
+    }
+
+    /**
+     * Sorts test targets according to their history, the relative
+     * order of targets that compare equal is kept.
+     * @param buildFile the build file containing the targets
+     * @param targets the test targets
+     * @param failedFirst whether failed targets should come first
+     * rather than the targets that took longest
+     * @return the sorted targets
+     */
+    synchronized List<String> sortTargets(File buildFile, List<String> targets,
+                                          boolean failedFirst) {
+        Map<String, Entry> known = new HashMap<String, Entry>();
+        for (String t : targets) {
+            known.put(t, get(key(buildFile), t));
+        }
+        return sort(targets, known, failedFirst);
+    }
+
+    /**
+     * The duration of the last run of a build file or test target.
+     * @param buildFile the build file
+     * @param target the name of the target, null for the build file
+     * itself
+     * @return the duration in milliseconds, null if unknown
+     */
+    synchronized Long getDuration(File buildFile, String target) {
+        Entry e = get(key(buildFile), target == null ? "" : target);
+        return e == null ? null : Long.valueOf(e.duration);
+    }
+
+    /**
+     * Creates a listener that records the outcome of all build files
+     * and test targets in this history.
+     * @return the listener
+     */
+    AntUnitListener createRecorder() {
+        return new Recorder();
+    }
+
+    private String key(File buildFile) {
+        return TestShards.key(baseDir, buildFile);
+    }
+
+    private Entry get(String buildFile, String target) {
+        Map<String, Entry> m = entries.get(buildFile);
+        return m == null ? null : m.get(target);
+    }
+
+    private synchronized void put(String buildFile, String target, Entry e) {
+        Map<String, Entry> m = entries.get(buildFile);
+        if (m == null) {
+            m = new LinkedHashMap<String, Entry>();
+            entries.put(buildFile, m);
+        }
+        m.put(target, e);
+    }
+
+    private void read(Reader r) throws IOException {
+        BufferedReader br = new BufferedReader(r);
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] fields = split(line);
+            if (fields == null) {
+                continue;
+            }
+            try {
+                put(fields[2], fields[3],
+                    new Entry(fields[0], Long.parseLong(fields[1])));
+            } catch (NumberFormatException e) {
+                // ignore broken lines
+            }
+        }
+    }
+
+    private void write(Writer w) throws IOException {
+        for (Map.Entry<String, Map<String, Entry>> file : entries.entrySet()) {
+            for (Map.Entry<String, Entry> target : file.getValue().entrySet()) {
+                w.write(target.getValue().outcome);
+                w.write(SEPARATOR);
+                w.write(String.valueOf(target.getValue().duration));
+                w.write(SEPARATOR);
+                w.write(file.getKey());
+                w.write(SEPARATOR);
+                w.write(target.getKey());
+                w.write('\n');
+            }
+        }
+        w.flush();
+    }
+
+    /**
+     * Splits a line into its four fields, null if the line is broken.
+     */
+    private static String[] split(String line) {
+        String[] fields = new String[4];
+        int start = 0;
+        for (int i = 0; i < 3; i++) {
+            int end = line.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                return null;
+            }
+            fields[i] = line.substring(start, end);
+            start = end + 1;
+        }
+        fields[3] = line.substring(start);
+        return fields;
+    }
+
+    private static <T> List<T> sort(List<T> items, final Map<T, Entry> known,
+                                    final boolean failedFirst) {
+        List<T> sorted = new ArrayList<T>(items);
+        Collections.sort(sorted, new Comparator<T>() {
+            public int compare(T t1, T t2) {
+                return failedFirst
+                    ? compareFailedFirst(known.get(t1), known.get(t2))
+                    : compareLongestFirst(known.get(t1), known.get(t2));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Failed before unknown before passed, the faster ones first.
+     */
+    private static int compareFailedFirst(Entry e1, Entry e2) {
+        int r1 = e1 == null ? 1 : e1.isPassed() ? 2 : 0;
+        int r2 = e2 == null ? 1 : e2.isPassed() ? 2 : 0;
+        if (r1 != r2) {
+            return r1 - r2;
+        }
+        if (e1 == null) {
+            return 0;
+        }
+        return compare(e1.duration, e2.duration);
+    }
+
+    /**
+     * Unknown before known, the slower ones first.
+     */
+    private static int compareLongestFirst(Entry e1, Entry e2) {
+        if (e1 == null || e2 == null) {
+            return e1 == null ? (e2 == null ? 0 : -1) : 1;
+        }
+        return compare(e2.duration, e1.duration);
+    }
+
+    private static int compare(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    /**
+     * Outcome and duration of a single build file or target.
+     */
+    private static class Entry {
+        private final String outcome;
+        private final long duration;
+
+        Entry(String outcome, long duration) {
+            this.outcome = outcome;
+            this.duration = duration;
+        }
+
+        boolean isPassed() {
+            return PASSED.equals(outcome);
+        }
+    }
+
+    /**
+     * Collects outcome and duration of build files and targets.
+     */
+    private class Recorder implements AntUnitListener {
+        private String buildFile;
+        private long suiteStart;
+        private boolean suitePassed;
+        private final Map<String, Long> testStarts = new HashMap<String, Long>();
+        private final Map<String, String> outcomes = new HashMap<String, String>();
+
+        public void setParentTask(Task t) {
+        }
+
+        public void setCurrentTestProject(Project p) {
+        }
+
+        public void startTestSuite(Project testProject, String buildFile) {
+            this.buildFile = key(new File(buildFile));
+            suiteStart = System.currentTimeMillis();
+            suitePassed = true;
+        }
+
+        public void endTestSuite(Project testProject, String buildFile) {
+            put(key(new File(buildFile)), "",
+                new Entry(suitePassed ? PASSED : FAILED,
+                          System.currentTimeMillis() - suiteStart));
+            this.buildFile = null;
+        }
+
+        public void startTest(String target) {
+            testStarts.put(target, Long.valueOf(System.currentTimeMillis()));
+            outcomes.put(target, PASSED);
+        }
+
+        public void endTest(String target) {
+            Long start = testStarts.remove(target);
+            String outcome = outcomes.remove(target);
+            if (buildFile != null && start != null) {
+                put(buildFile, target,
+                    new Entry(outcome, System.currentTimeMillis()
+                              - start.longValue()));
+            }
+        }
+
+        public void addFailure(String target, AssertionFailedException ae) {
+            setOutcome(target, FAILED);
+        }
+
+        public void addError(String target, Throwable ae) {
+            setOutcome(target, ERROR);
+        }
+
+        /**
+         * Failures and errors of tearDown arrive after endTest, in
+         * this case the entry already stored is updated.
+         */
+        private void setOutcome(String target, String outcome) {
+            suitePassed = false;
+            if (testStarts.containsKey(target)) {
+                outcomes.put(target, outcome);
+            } else if (buildFile != null) {
+                synchronized (TestHistory.this) {
+                    Entry e = get(buildFile, target);
+                    if (e != null) {
+                        put(buildFile, target, new Entry(outcome, e.duration));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Splits build files or test targets into a fixed number of shards.
+ *
+ * <p>Items with a known duration are distributed so the total
+ * duration of the shards is about the same: starting with the
+ * longest item each item is added to the shard with the smallest
+ * total so far.  Items without a known duration are assigned by the
+ * hash code of their key.  The result only depends on the keys and
+ * durations, not on the order in which the items have been found,
+ * so separate processes compute the same partition given the same
+ * history.</p>
+ *
+ * <p>Build files are identified by their path relative to a base
+ * directory, test targets by the key of their build file followed
+ * by a hash sign and the name of the target.</p>
+ *
+ * @since AntUnit 1.5
+ */
+class TestShards {
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private static final char SEPARATOR = '\t';
+
+    private final int index;
+    private final int count;
+    private final boolean byTarget;
+    private final File baseDir;
+
+    /**
+     * Shards of the items with a known duration by key.
+     */
+    private final Map<String, Integer> assigned = new LinkedHashMap<String, Integer>();
+
+    /**
+     * @param index the shard of this process, 0 based
+     * @param count the number of shards
+     * @param byTarget whether test targets rather than build files
+     * are split
+     * @param baseDir directory build file keys are relative to
+     */
+    TestShards(int index, int count, boolean byTarget, File baseDir) {
+        this.index = index;
+        this.count = count;
+        this.byTarget = byTarget;
+        this.baseDir = FILE_UTILS.normalize(baseDir.getAbsolutePath());
+    }
+
+    /**
+     * Whether test targets rather than build files are split.
+     */
+    boolean isByTarget() {
+        return byTarget;
+    }
+
+    /**
+     * The key of a build file.
+     * @param buildFile the build file
+     * @return the key
+     */
+    String key(File buildFile) {
+        return key(baseDir, buildFile);
+    }
+
+    /**
+     * The key of a build file relative to a base directory, also
+     * used by the test history.
+     * @param baseDir the normalized base directory
+     * @param buildFile the build file
+     * @return the path of the build file relative to the base
+     * directory, its absolute path if there is no relative path
+     */
+    static String key(File baseDir, File buildFile) {
+        try {
+            return FileUtils.getRelativePath(baseDir,
+                                             FILE_UTILS.normalize(buildFile
+                                                                  .getAbsolutePath()));
+        } catch (Exception e) {
+            return buildFile.getAbsolutePath();
+        }
+    }
+
+    /**
+     * The key of a test target.
+     * @param buildFile the build file defining the target
+     * @param target the name of the target
+     * @return the key
+     */
+    String key(File buildFile, String target) {
+        return key(buildFile) + "#" + target;
+    }
+
+    /**
+     * Distributes the items with a known duration.
+     * @param durations the durations of the items by key, null if
+     * the duration of an item is unknown
+     */
+    void balance(Map<String, Long> durations) {
+        List<Map.Entry<String, Long>> known = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Long> e : durations.entrySet()) {
+            if (e.getValue() != null) {
+                known.add(e);
+            }
+        }
+        Collections.sort(known, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                int c = e2.getValue().compareTo(e1.getValue());
+                return c != 0 ? c : e1.getKey().compareTo(e2.getKey());
+            }
+        });
+        long[] totals = new long[count];
+        for (Map.Entry<String, Long> e : known) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (totals[i] < totals[smallest]) {
+                    smallest = i;
+                }
+            }
+            totals[smallest] += e.getValue().longValue();
+            assigned.put(e.getKey(), Integer.valueOf(smallest));
+        }
+    }
+
+    /**
+     * Whether the item belongs to the shard of this process.
+     * @param key the key of the build file or target
+     * @return true if the item should be run
+     */
+    boolean contains(String key) {
+        Integer shard = assigned.get(key);
+        return (shard != null ? shard.intValue() : (key.hashCode() & 0x7fffffff) % count)
+            == index;
+    }
+
+    /**
+     * The shards restricted to the targets of a single build file.
+     * @param buildFile the build file
+     * @return the shards of the targets of the build file
+     */
+    TestShards forBuildFile(File buildFile) {
+        TestShards s = new TestShards(index, count, byTarget, baseDir);
+        String prefix = key(buildFile) + "#";
+        for (Map.Entry<String, Integer> e : assigned.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                s.assigned.put(e.getKey(), e.getValue());
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The shards as text, used to pass them to forked VMs.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(index).append(SEPARATOR).append(count).append(SEPARATOR)
+            .append(byTarget).append(SEPARATOR).append(baseDir.getPath()).append('\n');
+        for (Map.Entry<String, Integer> e : assigned.entrySet()) {
+            sb.append(e.getValue()).append(SEPARATOR).append(e.getKey()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates shards from the result of {@link #toString}.
+     * @param s the String representation of the shards
+     * @return the shards
+     */
+    static TestShards valueOf(String s) {
+        try {
+            BufferedReader r = new BufferedReader(new StringReader(s));
+            String[] header = r.readLine().split(String.valueOf(SEPARATOR), 4);
+            TestShards shards = new TestShards(Integer.parseInt(header[0]),
+                                               Integer.parseInt(header[1]),
+                                               Boolean.valueOf(header[2]).booleanValue(),
+                                               new File(header[3]));
+            String line;
+            while ((line = r.readLine()) != null) {
+                int tab = line.indexOf(SEPARATOR);
+                shards.assigned.put(line.substring(tab + 1),
+                                    Integer.valueOf(line.substring(0, tab)));
+            }
+            return shards;
+        } catch (IOException e) {
+            // can't happen
+            throw new BuildException(e);
+        }
+    }
+}
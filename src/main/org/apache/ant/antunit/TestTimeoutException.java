@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Reported as error of a test target that didn't complete in time.
+ *
+ * <p>The stack trace of the exception is the one of the thread
+ * running the test target at the time the timeout occurred, the
+ * message contains a dump of all threads.</p>
+ *
+ * @since AntUnit 1.5
+ */
+public class TestTimeoutException extends BuildException {
+
+    private static final long serialVersionUID = 5384167265404012458L;
+
+    private static final String LINE_SEP = System.getProperty("line.separator");
+
+    private final String threadDump;
+
+    /**
+     * @param target the name of the test target
+     * @param timeout the timeout in milliseconds
+     * @param testThread the thread running the target
+     */
+    public TestTimeoutException(String target, long timeout, Thread testThread) {
+        this(target, timeout, testThread, createThreadDump());
+    }
+
+    private TestTimeoutException(String target, long timeout, Thread testThread,
+                                 String threadDump) {
+        super("Test target " + target + " timed out after " + timeout + " ms"
+              + LINE_SEP + threadDump);
+        this.threadDump = threadDump;
+        setStackTrace(testThread.getStackTrace());
+    }
+
+    /**
+     * The stack traces of all threads at the time the timeout
+     * occurred.
+     * @return the thread dump
+     */
+    public String getThreadDump() {
+        return threadDump;
+    }
+
+    private static String createThreadDump() {
+        StringBuilder sb = new StringBuilder("Thread dump:");
+        for (Map.Entry<Thread, StackTraceElement[]> e
+                 : Thread.getAllStackTraces().entrySet()) {
+            Thread t = e.getKey();
+            sb.append(LINE_SEP).append('"').append(t.getName()).append('"');
+            if (t.isDaemon()) {
+                sb.append(" daemon");
+            }
+            sb.append(" ").append(t.getState());
+            for (StackTraceElement frame : e.getValue()) {
+                sb.append(LINE_SEP).append("\tat ").append(frame);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.ant.antunit;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads used to run tests concurrently.
+ */
+class WorkerThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+    private final ThreadGroup group;
+
+    /**
+     * The thread group shared by all detached threads of the VM.
+     */
+    private static ThreadGroup detachedGroup;
+
+    /**
+     * @param prefix prefix of the thread names
+     */
+    WorkerThreadFactory(String prefix) {
+        this(prefix, false);
+    }
+
+    /**
+     * @param prefix prefix of the thread names
+     * @param detached whether the threads should be created in a
+     * thread group of their own, so Ant doesn't pass output written
+     * by them to the task that created the factory
+     */
+    WorkerThreadFactory(String prefix, boolean detached) {
+        this.prefix = prefix;
+        group = detached ? getDetachedGroup() : null;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(group, r, prefix + " " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static synchronized ThreadGroup getDetachedGroup() {
+        if (detachedGroup == null) {
+            ThreadGroup root = Thread.currentThread().getThreadGroup();
+            while (root.getParent() != null) {
+                root = root.getParent();
+            }
+            detachedGroup = new ThreadGroup(root, "AntUnit");
+        }
+        return detachedGroup;
+    }
+}
@@ -31,6 +31,8 @@ import junit.framework.TestSuite;
 
 import org.apache.ant.antunit.AntUnitExecutionNotifier;
 import org.apache.ant.antunit.AntUnitScriptRunner;
+import org.apache.ant.antunit.BuildFileScanner;
+import org.apache.ant.antunit.CachingProjectHelper;
 import org.apache.ant.antunit.ProjectFactory;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DefaultLogger;
@@ -41,13 +43,20 @@ import org.apache.tools.ant.ProjectHelper;
 /**
  * A JUnit 3 TestSuite that group a suite of AntUnit targets coming from an ant
  * script.
+ *
+ * <p>The test targets are found by {@link BuildFileScanner scanning}
+ * the script, the project is only created once the suite gets run.
+ * If the scan can not find all targets of the script the project is
+ * created right away.</p>
  */
 public class AntUnitSuite extends TestSuite {
 
-    private final AntUnitScriptRunner antScriptRunner;
-    private final MultiProjectDemuxOutputStream stderr;
-    private final MultiProjectDemuxOutputStream stdout;
+    private final File scriptFile;
+    private final List<String> testTargets;
     private final ErrorTestCase initializationReportingTest;
+    private AntUnitScriptRunner antScriptRunner;
+    private MultiProjectDemuxOutputStream stderr;
+    private MultiProjectDemuxOutputStream stdout;
 
     /**
      * Create a JUnit TestSuite that when executed will run the given ant
@@ -65,23 +74,21 @@ public class AntUnitSuite extends TestSuite {
      */
     public AntUnitSuite(File scriptFile, Class<?> rootClass) {
         setName(rootClass.getName()); //This name allows eclipse to reexecute the test
-        final AntUnitScriptRunner createdScriptRunner;
-        try {
-            MyProjectFactory prjFactory = new MyProjectFactory(scriptFile);
-            createdScriptRunner = new AntUnitScriptRunner(prjFactory);
-        } catch (BuildException e) {
-            antScriptRunner = null;
-            stdout = null;
-            stderr = null;
-            initializationReportingTest = new ErrorTestCase(e);
-            addTest(initializationReportingTest);
-            return;
+        this.scriptFile = scriptFile;
+        List<String> scannedTargets = scanTestTargets(scriptFile);
+        if (scannedTargets == null) {
+            try {
+                scannedTargets = getAntScriptRunner().getTestTargets();
+            } catch (BuildException e) {
+                testTargets = null;
+                initializationReportingTest = new ErrorTestCase(e);
+                addTest(initializationReportingTest);
+                return;
+            }
         }
-        antScriptRunner = createdScriptRunner;
+        testTargets = scannedTargets;
         initializationReportingTest = null;
-        stdout = new MultiProjectDemuxOutputStream(antScriptRunner, false);
-        stderr = new MultiProjectDemuxOutputStream(antScriptRunner, true);
-        for (String target : antScriptRunner.getTestTargets()) {
+        for (String target : testTargets) {
             addTest(new AntUnitTestCase(this, scriptFile, target));
         }
     }
@@ -93,16 +100,46 @@ public class AntUnitSuite extends TestSuite {
      * @throws BuildException when the file project can not be create (parsed/read)
      */
     AntUnitSuite(AntUnitTestCase singleTc , File scriptFile) throws BuildException {
-        MyProjectFactory prjFactory = new MyProjectFactory(scriptFile);
-        antScriptRunner = new AntUnitScriptRunner(prjFactory);
+        this.scriptFile = scriptFile;
         //the exception is throwed, and it is up to the AntUnitTestCase to handle it.
+        AntUnitScriptRunner runner = getAntScriptRunner();
+        testTargets = Collections.singletonList(singleTc.getTarget());
         initializationReportingTest = null;
-        stdout = new MultiProjectDemuxOutputStream(antScriptRunner, false);
-        stderr = new MultiProjectDemuxOutputStream(antScriptRunner, true);
-        setName(antScriptRunner.getName() + "[" + scriptFile + "]");
+        setName(runner.getName() + "[" + scriptFile + "]");
         addTest(singleTc);
     }
 
+    /**
+     * Scans the script for test targets.
+     * @return the test targets or null if the scan could not find
+     * all targets
+     */
+    private static List<String> scanTestTargets(File scriptFile) {
+        try {
+            BuildFileScanner scanner = new BuildFileScanner(scriptFile, null);
+            return scanner.isComplete() ? scanner.getTestTargets() : null;
+        } catch (BuildException e) {
+            //let the project creation report the problem
+            return null;
+        }
+    }
+
+    /**
+     * Creates the script runner - and thus the project - when it is
+     * needed for the first time.
+     * @throws BuildException when the project can not be created
+     */
+    private synchronized AntUnitScriptRunner getAntScriptRunner() throws BuildException {
+        if (antScriptRunner == null) {
+            MyProjectFactory prjFactory = new MyProjectFactory(scriptFile);
+            AntUnitScriptRunner runner = new AntUnitScriptRunner(prjFactory);
+            stdout = new MultiProjectDemuxOutputStream(runner, false);
+            stderr = new MultiProjectDemuxOutputStream(runner, true);
+            antScriptRunner = runner;
+        }
+        return antScriptRunner;
+    }
+
     /**
      * {@inheritDoc}
      * <p>Run the full AntUnit suite.</p>
@@ -111,7 +148,6 @@ public class AntUnitSuite extends TestSuite {
         if (initializationReportingTest != null) {
             initializationReportingTest.run(testResult);
         } else {
-            List<String> testTargets = antScriptRunner.getTestTargets();
             JUnitNotificationAdapter notifier = new JUnitNotificationAdapter(
                     testResult, tests());
             runInContainer(testTargets, notifier);
@@ -147,12 +183,24 @@ public class AntUnitSuite extends TestSuite {
      *            The AntUnit notifier that will receive execution notifications
      */
     public void runInContainer(List<String> targetList, AntUnitExecutionNotifier notifier) {
+        AntUnitScriptRunner runner;
+        try {
+            runner = getAntScriptRunner();
+        } catch (BuildException e) {
+            //the project could not be created, each test reports the problem
+            for (String target : targetList) {
+                notifier.fireStartTest(target);
+                notifier.fireError(target, e);
+                notifier.fireEndTest(target);
+            }
+            return;
+        }
         PrintStream savedErr = System.err;
         PrintStream savedOut = System.out;
         try {
             System.setOut(new PrintStream(stdout));
             System.setErr(new PrintStream(stderr));
-            antScriptRunner.runSuite(targetList, notifier);
+            runner.runSuite(targetList, notifier);
         } finally {
             System.setOut(savedOut);
             System.setErr(savedErr);
@@ -173,8 +221,11 @@ public class AntUnitSuite extends TestSuite {
         }
 
         public Project createProject() {
-            ProjectHelper prjHelper = ProjectHelper.getProjectHelper();
             Project prj = new Project();
+            if (CachingProjectHelper.isEnabledForJUnit()) {
+                CachingProjectHelper.enable(prj);
+            }
+            ProjectHelper prjHelper = ProjectHelper.getProjectHelper();
             DefaultLogger logger = new DefaultLogger();
             logger.setMessageOutputLevel(Project.MSG_INFO);
             logger.setErrorPrintStream(realStdErr);
@@ -20,9 +20,14 @@
 package org.apache.ant.antunit;
 
 import java.io.PrintStream;
+import java.text.NumberFormat;
+import java.text.ParseException;
 
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildFileTest;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.DemuxOutputStream;
+import org.apache.tools.ant.Task;
 
 public class AntUnitTest extends BuildFileTest {
 
@@ -66,6 +71,305 @@ public class AntUnitTest extends BuildFileTest {
         assertTrue("Only one failure", log.indexOf("FAILED", index2 + 1) == -1);
     }
 
+    public void testThreads() {
+        expectBuildExceptionContaining("testThreads",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int property = log.indexOf("property.xml");
+        int base = log.indexOf("base.xml");
+        int echo = log.indexOf("echo.xml");
+        assertTrue("property.xml reported", property > -1);
+        assertTrue("base.xml reported after property.xml", base > property);
+        assertTrue("echo.xml reported after base.xml", echo > base);
+        assertTrue("summary of base.xml",
+                   log.indexOf("Tests run: 5, Failures: 1, Errors: 1", base) > -1);
+        assertTrue("summary of echo.xml",
+                   log.indexOf("Tests run: 1, Failures: 0, Errors: 0", echo) > -1);
+    }
+
+    public void testThreadsBrokenFile() {
+        expectBuildExceptionContaining("testThreadsBrokenFile",
+                                       "broken build file fails the task",
+                                       "Broken build file");
+        String log = getLog();
+        assertTrue("build file running concurrently completed",
+                   log.indexOf("Tests run: 2, Failures: 0, Errors: 0") > -1);
+        assertEquals("build file not started yet skipped",
+                     -1, log.indexOf("echo.xml"));
+    }
+
+    public void testThreadsDurations() throws ParseException {
+        executeTarget("testThreadsDurations");
+        String log = getLog();
+        assertDuration(log, "testSleep1");
+        assertDuration(log, "testSleep2");
+    }
+
+    private static void assertDuration(String log, String target)
+        throws ParseException {
+        String prefix = "Target: " + target + " took ";
+        int index = log.indexOf(prefix);
+        assertTrue(target + " reported", index > -1);
+        index += prefix.length();
+        // PlainAntUnitListener uses the default locale
+        double seconds = NumberFormat.getInstance()
+            .parse(log.substring(index, log.indexOf(' ', index))).doubleValue();
+        assertTrue(target + " took " + seconds + " seconds", seconds >= 0.4);
+    }
+
+    public void testThreadsCaptureLevel() {
+        executeTarget("testThreadsCaptureLevel");
+        String log = getLog();
+        int second = log.indexOf("Build File:", log.indexOf("Build File:") + 1);
+        assertTrue("both runs reported", second > -1);
+        int verbose = log.indexOf("Build sequence for target(s)");
+        assertTrue("verbose message recorded", verbose > -1 && verbose < second);
+        assertTrue("verbose message recorded with captureLevel info",
+                   log.indexOf("Build sequence for target(s)", second) > -1);
+        assertTrue("info message recorded with captureLevel info",
+                   log.indexOf("ant.jar", second) > -1);
+    }
+
+    public void testParallelTargets() {
+        expectBuildExceptionContaining("testParallelTargets",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int index = log.indexOf("Tests run: 5, Failures: 1, Errors: 1");
+        assertTrue("summary", index > -1);
+        int index2 = log.indexOf("caused an ERROR", index);
+        assertTrue("test5 error", index2 > -1
+                   && log.indexOf("test5 exits with error", index2) > -1);
+        index2 = log.indexOf("FAILED", index);
+        assertTrue("test4 failure", index2 > -1
+                   && log.indexOf("test4 fails", index2) > -1);
+    }
+
+    public void testParseOnce() {
+        expectBuildExceptionContaining("testParseOnce",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int index = log.indexOf("Tests run: 5, Failures: 1, Errors: 1");
+        assertTrue("summary of base.xml", index > -1);
+        index = log.indexOf("Tests run: 2, Failures: 0, Errors: 0", index);
+        assertTrue("summary of property.xml", index > -1);
+        index = log.indexOf("Tests run: 3, Failures: 0, Errors: 0", index);
+        assertTrue("summary of assertLogContains-test.xml", index > -1);
+    }
+
+    public void testForkPerBatch() {
+        expectBuildExceptionContaining("testForkPerBatch",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int property = log.indexOf("property.xml");
+        int base = log.indexOf("base.xml");
+        int echo = log.indexOf("echo.xml");
+        assertTrue("property.xml reported", property > -1);
+        assertTrue("base.xml reported after property.xml", base > property);
+        assertTrue("echo.xml reported after base.xml", echo > base);
+        assertTrue("summary of property.xml",
+                   log.indexOf("Tests run: 2, Failures: 0, Errors: 0", property) > -1);
+        assertTrue("summary of base.xml",
+                   log.indexOf("Tests run: 5, Failures: 1, Errors: 1", base) > -1);
+        assertTrue("failure message of base.xml",
+                   log.indexOf("test4 fails", base) > -1);
+        assertTrue("summary of echo.xml",
+                   log.indexOf("Tests run: 1, Failures: 0, Errors: 0", echo) > -1);
+    }
+
+    public void testForkPerFile() {
+        executeTarget("testForkPerFile");
+        String log = getLog();
+        assertTrue("summary of echo.xml",
+                   log.indexOf("Tests run: 1, Failures: 0, Errors: 0") > -1);
+        assertTrue("log of the forked test", log.indexOf("ant.jar") > -1);
+    }
+
+    public void testForkError() {
+        expectBuildExceptionContaining("testForkError",
+                                       "worker VM has died",
+                                       "Worker VM terminated unexpectedly");
+    }
+
+    public void testOrderFailedFirst() {
+        executeTarget("testOrderFailedFirst");
+        String log = getLog();
+        int test1 = log.indexOf("Target: test1");
+        int test4 = log.indexOf("Target: test4");
+        int test5 = log.indexOf("Target: test5");
+        assertTrue("test1 listed", test1 > -1);
+        assertTrue("failure before success", test4 > -1 && test4 < test1);
+        assertTrue("error before success", test5 > -1 && test5 < test1);
+    }
+
+    public void testHistoryTearDownError() {
+        executeTarget("testHistoryTearDownError");
+    }
+
+    public void testOrderWithoutHistory() {
+        expectBuildExceptionContaining("testOrderWithoutHistory",
+                                       "order requires history",
+                                       AntUnit.ERROR_NO_HISTORY);
+    }
+
+    public void testShardTargets() {
+        executeTarget("testShardTargets");
+        String log = getLog();
+        assertTrue("longest test", log.indexOf("Target: test1") > -1);
+        assertTrue("balances test1", log.indexOf("Target: test5") > -1);
+        assertEquals("second longest test", -1, log.indexOf("Target: test2"));
+        assertEquals("balances test2", -1, log.indexOf("Target: test4"));
+        assertEquals("third shortest test", -1, log.indexOf("Target: testLogCaptureActive"));
+    }
+
+    public void testInvalidShard() {
+        expectBuildExceptionContaining("testInvalidShard",
+                                       "index out of range",
+                                       AntUnit.ERROR_INVALID_SHARD);
+    }
+
+    public void testTimeout() {
+        executeTarget("testTimeout");
+        String log = getLog();
+        assertTrue("hanging test reported",
+                   log.indexOf("Test target testHangs timed out after 500 ms") > -1);
+        assertTrue("thread dump", log.indexOf("Thread dump:") > -1);
+        assertTrue("summary",
+                   log.indexOf("Tests run: 2, Failures: 0, Errors: 1") > -1);
+        assertTrue("tearDown", log.indexOf("tearDown of the test") > -1);
+        assertEquals("tearDown of the hanging test in a new project",
+                     -1, log.indexOf("hanging=true"));
+        assertTrue("next test", log.indexOf("quick test") > -1);
+    }
+
+    public void testHaltOnFirstFailure() {
+        executeTarget("testHaltOnFirstFailure");
+        String log = getLog();
+        assertTrue("stopped", log.indexOf("Reached the maximum number") > -1);
+        assertEquals("stopped after the first failure or error",
+                     -1, log.indexOf("Failures: 1, Errors: 1"));
+        assertEquals("echo.xml not started", -1, log.indexOf("echo.xml"));
+    }
+
+    public void testMaxFailures() {
+        executeTarget("testMaxFailures");
+        String log = getLog();
+        assertTrue("stopped", log.indexOf("Reached the maximum number") > -1);
+        assertTrue("both failing tests run",
+                   log.indexOf("Failures: 1, Errors: 1") > -1);
+        assertEquals("echo.xml not started", -1, log.indexOf("echo.xml"));
+    }
+
+    public void testInheritedProperties() {
+        executeTarget("testInheritedProperties");
+        assertTrue("all tests pass",
+                   getLog().indexOf("Tests run: 4, Failures: 0, Errors: 0") > -1);
+    }
+
+    public void testSharedCoreLoader() {
+        executeTarget("testSharedCoreLoader");
+        String log = getLog();
+        int first = log.indexOf("Tests run: 3, Failures: 0, Errors: 0");
+        assertTrue("first run", first > -1);
+        assertTrue("second run",
+                   log.indexOf("Tests run: 3, Failures: 0, Errors: 0", first + 1) > -1);
+    }
+
+    public void testParseCache() {
+        executeTarget("testParseCache");
+        String log = getLog();
+        int index = log.indexOf("Tests run: 2, Failures: 0, Errors: 0");
+        assertTrue("imported fragment", index > -1);
+        index = log.indexOf("Tests run: 1, Failures: 0, Errors: 0", index);
+        assertTrue("included fragment", index > -1);
+        index = log.indexOf("Tests run: 2, Failures: 1, Errors: 0", index);
+        assertTrue("modified imported fragment", index > -1);
+        index = log.indexOf("Tests run: 1, Failures: 1, Errors: 0", index);
+        assertTrue("modified included fragment", index > -1);
+    }
+
+    public void testParseCacheDisabled() {
+        executeTarget("testParseCacheDisabled");
+        String log = getLog();
+        int second = log.indexOf("Build File:", log.indexOf("Build File:") + 1);
+        assertTrue("both runs reported", second > -1);
+        int cached = log.indexOf("from the parse cache");
+        assertTrue("cache not used without parseCache", cached > second);
+    }
+
+    public void testPrepareProjects() {
+        expectBuildExceptionContaining("testPrepareProjects",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int index = log.indexOf("Tests run: 5, Failures: 1, Errors: 1");
+        assertTrue("summary", index > -1);
+        int index2 = log.indexOf("caused an ERROR", index);
+        assertTrue("test5 error", index2 > -1
+                   && log.indexOf("test5 exits with error", index2) > -1);
+        index2 = log.indexOf("FAILED", index);
+        assertTrue("test4 failure", index2 > -1
+                   && log.indexOf("test4 fails", index2) > -1);
+    }
+
+    public void testReadAhead() {
+        expectBuildExceptionContaining("testReadAhead",
+            "expected base.xml to fail",
+            AntUnit.ERROR_TESTS_FAILED);
+        String log = getLog();
+        int property = log.indexOf("property.xml");
+        int base = log.indexOf("base.xml");
+        int echo = log.indexOf("echo.xml");
+        assertTrue("property.xml reported", property > -1);
+        assertTrue("base.xml reported after property.xml", base > property);
+        assertTrue("echo.xml reported after base.xml", echo > base);
+        assertTrue("summary of base.xml",
+                   log.indexOf("Tests run: 5, Failures: 1, Errors: 1", base) > -1);
+        assertTrue("summary of echo.xml",
+                   log.indexOf("Tests run: 1, Failures: 0, Errors: 0", echo) > -1);
+    }
+
+    public void testReadAheadError() {
+        expectBuildExceptionContaining("testReadAheadError",
+            "expected broken.xml to fail", "broken build file");
+        String log = getLog();
+        assertTrue("echo.xml has been run before the error",
+                   log.indexOf("Tests run: 1, Failures: 0, Errors: 0") > -1);
+        assertEquals("base.xml has not been run",
+                     -1, log.indexOf("Tests run: 5"));
+    }
+
+    public void testCaptureLevel() {
+        executeTarget("testCaptureLevel");
+        String log = getLog();
+        int index = log.indexOf("Tests run: 2, Failures: 0, Errors: 0");
+        assertTrue("attribute.xml", index > -1);
+        assertTrue("property.xml",
+                   log.indexOf("Tests run: 2, Failures: 0, Errors: 0", index + 1) > -1);
+    }
+
+    public void testLogMemoryLimit() {
+        executeTarget("testLogMemoryLimit");
+        String log = getLog();
+        int index = log.indexOf("Tests run: 2, Failures: 0, Errors: 0");
+        assertTrue("logmemory.xml", index > -1);
+        assertTrue("assertLogContains-test.xml",
+                   log.indexOf("Tests run: 3, Failures: 0, Errors: 0", index + 1) > -1);
+    }
+
+    public void testListOnly() {
+        executeTarget("testListOnly");
+        String log = getLog();
+        assertTrue("local test", log.indexOf("Target: testLocal") > -1);
+        assertTrue("imported test", log.indexOf("Target: test1") > -1);
+        assertTrue("prefixed test", log.indexOf("Target: testbase.test1") > -1);
+        assertEquals("Xtest3 is not a test", -1, log.indexOf("Target: Xtest3"));
+        assertEquals("no tests have been run", -1, log.indexOf("Tests run:"));
+    }
+
     public void testNoTests() {
         expectSpecificBuildException("noTests", "No tests have been specified",
                                      AntUnit.ERROR_NO_TESTS);
@@ -124,6 +428,29 @@ public class AntUnitTest extends BuildFileTest {
         executeTarget("testReferenceMapper");
     }
 
+    public void testReferenceCopyOnAccess() {
+        executeTarget("testReferenceCopyOnAccess");
+    }
+
+    /**
+     * Makes its project throw an Error outside of any target.
+     */
+    public static class ErrorOnBuildFinished extends Task {
+        public void execute() {
+            getProject().addBuildListener(new BuildListener() {
+                    public void buildStarted(BuildEvent event) { }
+                    public void buildFinished(BuildEvent event) {
+                        throw new Error("error in buildFinished");
+                    }
+                    public void targetStarted(BuildEvent event) { }
+                    public void targetFinished(BuildEvent event) { }
+                    public void taskStarted(BuildEvent event) { }
+                    public void taskFinished(BuildEvent event) { }
+                    public void messageLogged(BuildEvent event) { }
+                });
+        }
+    }
+
     public static class HelloWorld {
         public static void main(String[] args) {
             System.out.println("HelloWorld");
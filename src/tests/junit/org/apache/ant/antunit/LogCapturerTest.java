@@ -19,8 +19,11 @@
  */
 package org.apache.ant.antunit;
 
+import java.io.IOException;
+
 import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.FileUtils;
 import org.apache.tools.ant.util.StringUtils;
 
 import junit.framework.Assert;
@@ -82,6 +85,244 @@ public class LogCapturerTest extends TestCase {
         Assert.assertEquals(c.getErrLog(true), "01");
     }
 
+    public void testManyInterleavedMessages() {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p);
+
+        StringBuilder err = new StringBuilder();
+        StringBuilder verbose = new StringBuilder();
+        StringBuilder debug = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            // equal but not identical messages
+            String message = new String(i % 3 == 0 ? "x" : String.valueOf(i));
+            int priority = i % 5;
+            BuildEvent be = new BuildEvent(p);
+            be.setMessage(message, priority);
+            c.messageLogged(be);
+            if (priority == Project.MSG_ERR) {
+                err.append(message);
+            }
+            if (priority <= Project.MSG_VERBOSE) {
+                verbose.append(message);
+            }
+            debug.append(message);
+        }
+        Assert.assertEquals(err.toString(), c.getErrLog());
+        Assert.assertEquals(verbose.toString(), c.getVerboseLog());
+        // the project itself logs the reference to the capturer
+        Assert.assertTrue(c.getDebugLog().endsWith(debug.toString()));
+    }
+
+    public void testPrioritiesOutOfRange() {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p);
+
+        BuildEvent be = new BuildEvent(p);
+        be.setMessage("below", -1);
+        c.messageLogged(be);
+        be = new BuildEvent(p);
+        be.setMessage("above", Project.MSG_DEBUG + 1);
+        c.messageLogged(be);
+        Assert.assertEquals("below", c.getErrLog());
+        Assert.assertTrue(c.getDebugLog().endsWith("below"));
+    }
+
+    public void testLogIsExtended() {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p);
+
+        BuildEvent be = new BuildEvent(p);
+        be.setMessage("0", Project.MSG_ERR);
+        c.messageLogged(be);
+        String log = c.getErrLog(false);
+        Assert.assertEquals("0" + StringUtils.LINE_SEP, log);
+        Assert.assertSame(log, c.getErrLog(false));
+        Assert.assertEquals("0", c.getErrLog(true));
+
+        be = new BuildEvent(p);
+        be.setMessage("1", Project.MSG_INFO);
+        c.messageLogged(be);
+        Assert.assertSame(log, c.getErrLog(false));
+        be = new BuildEvent(p);
+        be.setMessage("2", Project.MSG_ERR);
+        c.messageLogged(be);
+        Assert.assertEquals("0" + StringUtils.LINE_SEP + "2" + StringUtils.LINE_SEP,
+                            c.getErrLog(false));
+        Assert.assertEquals("02", c.getErrLog(true));
+        Assert.assertEquals("012", c.getInfoLog(true));
+    }
+
+    public void testLogIsAppendedInPlace() {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p);
+        CharSequence buffer = c.getView(Project.MSG_ERR, true).getBuffer();
+
+        BuildEvent be = new BuildEvent(p);
+        be.setMessage("0", Project.MSG_ERR);
+        c.messageLogged(be);
+        Assert.assertTrue(c.contains("0", Project.MSG_ERR, true));
+        be = new BuildEvent(p);
+        be.setMessage("1", Project.MSG_ERR);
+        c.messageLogged(be);
+        Assert.assertTrue(c.contains("01", Project.MSG_ERR, true));
+        Assert.assertFalse(c.contains("10", Project.MSG_ERR, true));
+
+        Assert.assertSame(buffer, c.getView(Project.MSG_ERR, true).getBuffer());
+        Assert.assertEquals("01", buffer.toString());
+        Assert.assertEquals("01", c.getErrLog(true));
+    }
+
+    public void testCaptureLevel() {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p, Project.MSG_INFO);
+        assertEquals(Project.MSG_INFO, c.getCaptureLevel());
+
+        String[] messages = new String[] { "err", "warn", "info", "verbose", "debug" };
+
+        for (int i = 0; i < messages.length; i++) {
+            BuildEvent be = new BuildEvent(p);
+            be.setMessage(messages[i], i);
+            c.messageLogged(be);
+        }
+        Assert.assertEquals("errwarninfo", c.getDebugLog());
+    }
+
+    public void testMemoryLimit() throws IOException {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p, Project.MSG_DEBUG, 10);
+
+        StringBuilder info = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            BuildEvent be = new BuildEvent(p);
+            be.setMessage("message " + i, i % 2 == 0 ? Project.MSG_INFO
+                          : Project.MSG_DEBUG);
+            c.messageLogged(be);
+            if (i % 2 == 0) {
+                info.append("message " + i).append(StringUtils.LINE_SEP);
+            }
+        }
+        Assert.assertEquals(info.toString(), c.getInfoLog(false));
+        assertTrue(c.contains("message 0message 2", Project.MSG_INFO, true));
+        assertFalse(c.contains("message 99", Project.MSG_INFO, true));
+        assertTrue(c.contains("message 99", Project.MSG_DEBUG, true));
+        assertEquals(info.toString(),
+                     FileUtils.readFully(c.getLogReader(Project.MSG_INFO, false)));
+
+        c.discard();
+        BuildEvent be = new BuildEvent(p);
+        be.setMessage("discarded", Project.MSG_INFO);
+        c.messageLogged(be);
+        assertFalse(c.contains("discarded", Project.MSG_INFO, true));
+        assertNull(p.getReference(LogCapturer.REFERENCE_ID));
+    }
+
+    public void testSince() throws IOException {
+        assertSince(0);
+        assertSince(10);
+    }
+
+    private static void assertSince(int memoryLimit) throws IOException {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p, Project.MSG_DEBUG, memoryLimit);
+        long mark = 0;
+        StringBuilder tail = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            if (i == 50) {
+                mark = c.getPosition();
+            }
+            BuildEvent be = new BuildEvent(p);
+            be.setMessage("message " + i, Project.MSG_INFO);
+            c.messageLogged(be);
+            if (i >= 50) {
+                tail.append("message " + i).append(StringUtils.LINE_SEP);
+            }
+        }
+        long end = c.getPosition();
+        assertEquals(mark + 50, end);
+
+        assertTrue(c.contains("message 49", Project.MSG_INFO, true));
+        assertFalse(c.contains("message 49", Project.MSG_INFO, true, mark));
+        assertTrue(c.contains("message 50", Project.MSG_INFO, true, mark));
+        assertEquals(tail.toString(),
+                     FileUtils.readFully(c.getLogReader(Project.MSG_INFO, false,
+                                                        mark)));
+        assertEquals(tail.length(), c.getLogSize(Project.MSG_INFO, false, mark));
+
+        BuildEvent be = new BuildEvent(p);
+        be.setMessage("last", Project.MSG_INFO);
+        c.messageLogged(be);
+        assertEquals("last", FileUtils.readFully(c.getLogReader(Project.MSG_INFO,
+                                                                true, end)));
+        assertEquals(4, c.getLogSize(Project.MSG_INFO, true, end));
+        assertNull(FileUtils.readFully(c.getLogReader(Project.MSG_INFO, true,
+                                                      end + 1)));
+        c.discard();
+    }
+
+    public void testConcurrentCapture() throws Exception {
+        assertConcurrentCapture(0);
+        assertConcurrentCapture(1000);
+    }
+
+    private static void assertConcurrentCapture(int memoryLimit) throws Exception {
+        final Project p = new Project();
+        final LogCapturer c = new LogCapturer(p, Project.MSG_INFO, memoryLimit);
+        final int count = 2000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < count; j++) {
+                            BuildEvent be = new BuildEvent(p);
+                            be.setMessage("t" + id + "-" + j, Project.MSG_INFO);
+                            c.messageLogged(be);
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+        // logs read while messages are captured don't have gaps
+        boolean alive = true;
+        while (alive) {
+            assertNoGaps(FileUtils.readFully(c.getLogReader(Project.MSG_INFO, false)),
+                         threads.length);
+            alive = false;
+            for (int i = 0; i < threads.length; i++) {
+                alive |= threads[i].isAlive();
+            }
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        String log = FileUtils.readFully(c.getLogReader(Project.MSG_INFO, false));
+        int[] seen = assertNoGaps(log, threads.length);
+        for (int i = 0; i < threads.length; i++) {
+            assertEquals(count, seen[i]);
+        }
+        assertEquals(log, c.getInfoLog(false));
+        assertEquals(threads.length * count, c.getPosition());
+        c.discard();
+    }
+
+    /**
+     * Asserts the messages of each thread are in order and complete.
+     * @return the number of messages of each thread
+     */
+    private static int[] assertNoGaps(String log, int threads) {
+        int[] seen = new int[threads];
+        if (log == null) {
+            return seen;
+        }
+        String[] lines = log.split(StringUtils.LINE_SEP);
+        for (int i = 0; i < lines.length; i++) {
+            int dash = lines[i].indexOf('-');
+            int id = Integer.parseInt(lines[i].substring(1, dash));
+            assertEquals(seen[id]++, Integer.parseInt(lines[i].substring(dash + 1)));
+        }
+        return seen;
+    }
+
     private static void assertMessages(String actual, String[] messages,
                                        int upTo) {
         for (int i = 0; i <= upTo && i < messages.length; i++) {
@@ -19,7 +19,10 @@
  */
 package org.apache.ant.antunit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.Project;
@@ -118,6 +121,52 @@ public class LogContentTest extends TestCase {
         Assert.assertEquals(s.getValue(), "01");
     }
 
+    public void testUtf8AndSize() throws IOException {
+        assertUtf8AndSize(0);
+    }
+
+    public void testUtf8AndSizeWithMemoryLimit() throws IOException {
+        assertUtf8AndSize(100);
+    }
+
+    private static void assertUtf8AndSize(int memoryLimit) throws IOException {
+        Project p = new Project();
+        LogCapturer c = new LogCapturer(p, Project.MSG_DEBUG, memoryLimit);
+
+        StringBuilder sb = new StringBuilder();
+        // a surrogate pair crossing the boundary of the encoded chunks
+        for (int i = 0; i < 4095; i++) {
+            sb.append('a');
+        }
+        String[] msgs = new String[] {
+            "\u00e4\u20ac", sb.append("\ud83d\ude00").toString(), "\ud83d", "\ude00"
+        };
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < msgs.length; i++) {
+            BuildEvent be = new BuildEvent(p);
+            be.setMessage(msgs[i], Project.MSG_INFO);
+            c.messageLogged(be);
+            expected.append(msgs[i]).append(StringUtils.LINE_SEP);
+        }
+        byte[] expectedBytes = expected.toString().getBytes("UTF-8");
+
+        LogContent content = new LogContent(p, LogLevel.INFO, false);
+        assertEquals(expectedBytes.length, content.getSize());
+        InputStream in = content.getInputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1000];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                actual.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(expectedBytes, actual.toByteArray()));
+        c.discard();
+    }
+
     private static void assertMessages(LogContent content, String[] messages,
                                        int upTo) throws IOException {
         StringResource s = new StringResource();
@@ -97,5 +97,19 @@ public class AntUnitSuiteTest extends TestCase {
                 error.exceptionMessage().contains("xxxx"));
     }
     
+    public void testTargetsDiscoveredWithoutConfiguringProject() {
+        suite = new AntUnitSuite(new File(
+            "src/etc/testcases/antunit/lazy/toplevel-fail.xml"), AntUnitSuiteTest.class);
+        assertFalse(suite.hasAntInitError());
+        assertEquals(2, suite.testCount());
+
+        TestResult testResult = new TestResult();
+        suite.run(testResult);
+        assertEquals(2, testResult.errorCount());
+        TestFailure error = (TestFailure) testResult.errors().nextElement();
+        assertTrue("Unexpected error : " + error.exceptionMessage(),
+                error.exceptionMessage().contains("top-level task executed"));
+    }
+
     //TODO test missing target error reporting
 }